@@ -39,5 +39,10 @@ interface IConfigurationManager {
 
     fun isExclude(uri: FileURI): ThreeState
 
+    /**
+     * [ThreeState.YES] if every file below the directory is excluded
+     */
+    fun isExcludeDirectory(uri: FileURI): ThreeState
+
     fun getConfigurationFor(root: FileURI): IConfigurationStructure?
 }
\ No newline at end of file
@@ -6,12 +6,15 @@ import com.intellij.codeInsight.completion.CompletionResultSet
 import com.intellij.codeInsight.completion.CompletionType
 import com.intellij.codeInsight.completion.impl.CamelHumpMatcher
 import com.intellij.codeInsight.lookup.LookupElement
+import com.intellij.lang.ASTNode
 import com.intellij.lang.PsiBuilderFactory
 import com.intellij.psi.PsiElement
 import com.intellij.psi.PsiFile
 import com.intellij.util.Consumer
 import com.tang.intellij.lua.configuration.IConfigurationManager
 import com.tang.intellij.lua.editor.CaretImpl
+import com.tang.intellij.lua.lang.BlockReparser
+import com.tang.intellij.lua.lang.LuaCharTable
 import com.tang.intellij.lua.lang.LuaParserDefinition
 import com.tang.intellij.lua.lexer.LuaLexer
 import com.tang.intellij.lua.parser.LuaParser
@@ -65,13 +68,20 @@ object CompletionService {
         contributors.forEach { it.fillCompletionVariants(parameters, result) }
     }
 
+    /**
+     * the copy of the file with the dummy identifier is a clone of its tree with only the block around the caret parsed again,
+     * the whole text is parsed if that block can not be reparsed on its own
+     */
     private fun insertDummyIdentifier(context: CompletionInitializationContext): PsiElement {
         val oriFile = context.file
         val pos = context.startOffset
         val text = oriFile.text.replaceRange(pos, pos, context.dummyIdentifier)
-        val parser = LuaParser()
-        val builder = PsiBuilderFactory.getInstance().createBuilder(LuaParserDefinition(), LuaLexer(), text)
-        val node = parser.parse(LuaParserDefinition.FILE, builder)
+        var node = oriFile.node.clone() as ASTNode
+        if (BlockReparser.reparse(node, pos, pos, text) == null) {
+            val parser = LuaParser()
+            val builder = PsiBuilderFactory.getInstance().createBuilder(LuaParserDefinition(), LuaLexer(), text, LuaCharTable)
+            node = parser.parse(LuaParserDefinition.FILE, builder)
+        }
         val copy = node.psi as LuaPsiFile
         copy.virtualFile = oriFile.virtualFile
         val position = copy.findElementAt(pos)
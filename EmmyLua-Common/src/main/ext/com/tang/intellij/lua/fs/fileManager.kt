@@ -7,6 +7,10 @@ import com.tang.intellij.lua.configuration.IConfigurationManager
 import com.tang.intellij.lua.configuration.ISourceRoot
 import com.tang.lsp.FileURI
 import java.io.File
+import java.io.IOException
+import java.nio.file.*
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.*
 
 interface IFileCollection {
     val root: FileURI
@@ -16,6 +20,14 @@ interface IFileCollection {
 interface IFileScopeProvider {
     fun isInclude(uri: FileURI): ThreeState
     fun isExclude(uri: FileURI): ThreeState
+    /**
+     * checked by the crawler before a uri is built for a file, [ThreeState.YES] rejects the file
+     */
+    fun isExcludeFileName(name: String): ThreeState
+    /**
+     * [ThreeState.YES] if no file below the directory can be included, the crawler skips the whole subtree
+     */
+    fun isExcludeDirectory(uri: FileURI): ThreeState
     fun findAllFiles(manager: FileManager): List<IFileCollection>
     fun getSourceRoots(project: Project): Array<ISourceRoot>
 }
@@ -74,12 +86,51 @@ class FileManager(project: Project) : IFileManager {
         return list.toTypedArray()
     }
 
+    private fun isExcludeFileName(name: String): Boolean {
+        return providers.any { it.isExcludeFileName(name) == ThreeState.YES }
+    }
+
+    private fun isExcludeDirectory(uri: FileURI): Boolean {
+        return providers.any { it.isExcludeDirectory(uri) == ThreeState.YES }
+    }
+
     fun collectFiles(file: File, list: MutableList<FileURI>) {
-        val fileUri = FileURI.file(file)
-        if (file.isFile && isInclude(fileUri)) {
-            list.add(fileUri)
-        } else if (file.isDirectory) {
-            file.listFiles()?.forEach { collectFiles(it, list) }
+        val root = file.toPath()
+        try {
+            Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Int.MAX_VALUE, CollectFilesVisitor(root, list))
+        } catch (e: IOException) {
+            // an unreadable root is skipped like an unreadable entry
+        }
+    }
+
+    /**
+     * uris are only built for directories and for files whose name passes [isExcludeFileName],
+     * excluded directories are skipped with their whole subtree
+     */
+    private inner class CollectFilesVisitor(
+            private val root: Path,
+            private val list: MutableList<FileURI>
+    ) : SimpleFileVisitor<Path>() {
+        override fun preVisitDirectory(dir: Path, attrs: BasicFileAttributes): FileVisitResult {
+            if (dir != root && isExcludeDirectory(FileURI(dir.toUri(), true)))
+                return FileVisitResult.SKIP_SUBTREE
+            return FileVisitResult.CONTINUE
+        }
+
+        override fun visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult {
+            if (!attrs.isRegularFile)
+                return FileVisitResult.CONTINUE
+            val name = file.fileName?.toString() ?: return FileVisitResult.CONTINUE
+            if (isExcludeFileName(name))
+                return FileVisitResult.CONTINUE
+            val uri = FileURI(file.toUri(), false)
+            if (isInclude(uri))
+                list.add(uri)
+            return FileVisitResult.CONTINUE
+        }
+
+        override fun visitFileFailed(file: Path, exc: IOException): FileVisitResult {
+            return FileVisitResult.CONTINUE
         }
     }
 }
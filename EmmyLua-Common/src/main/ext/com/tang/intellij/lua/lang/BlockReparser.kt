@@ -0,0 +1,127 @@
+package com.tang.intellij.lua.lang
+
+import com.intellij.lang.ASTNode
+import com.intellij.lang.PsiBuilder
+import com.intellij.lang.PsiBuilderFactory
+import com.intellij.lang.impl.PsiBuilderImpl
+import com.intellij.lang.parser.GeneratedParserUtilBase
+import com.intellij.lexer.FlexAdapter
+import com.intellij.psi.TokenType
+import com.intellij.psi.impl.source.tree.TreeElement
+import com.intellij.psi.impl.source.tree.TreeUtil
+import com.intellij.psi.tree.IElementType
+import com.tang.intellij.lua.lexer._LuaLexer
+import com.tang.intellij.lua.parser.LuaParser
+import com.tang.intellij.lua.psi.LuaTypes
+
+/**
+ * Reparses the innermost block around an edit and puts the new nodes in place of the old ones,
+ * the nodes and psi outside of that block are kept.
+ *
+ * A block is reparsed together with the token closing it (end, until, else, ...),
+ * the result is only used if that token comes out unchanged, so an edit that changes
+ * the structure around the block, like typing 'end' or opening a long comment, parses the whole file.
+ */
+object BlockReparser {
+    private val definition = LuaParserDefinition()
+    private val REPARSE_ROOT = IElementType("REPARSE_ROOT", LuaLanguage.INSTANCE)
+
+    /**
+     * [start, end) of the old text was lexed and parsed again by [builder], the text behind it moved by [delta]
+     */
+    class Result(val start: Int, val end: Int, val delta: Int, val builder: PsiBuilderImpl)
+
+    /**
+     * @param root the root of the tree, changed in place
+     * @param start start of the changed range in the old text
+     * @param end end of the changed range in the old text
+     * @param newText the whole text after the change
+     * @return null if the tree was not changed and the file has to be parsed again
+     */
+    fun reparse(root: ASTNode, start: Int, end: Int, newText: CharSequence): Result? {
+        val oldLength = root.textLength
+        if (oldLength == 0)
+            return null
+        val delta = newText.length - oldLength
+        val leafAtStart = root.findLeafElementAt(Math.max(0, start - 1)) ?: return null
+        val leafAtEnd = root.findLeafElementAt(Math.min(end, oldLength - 1)) ?: return null
+        var node: ASTNode? = TreeUtil.findCommonParent(leafAtStart, leafAtEnd)
+        while (node != null && node != root) {
+            if (node.elementType == LuaTypes.BLOCK) {
+                val result = reparseBlock(node, start, end, newText, delta)
+                if (result != null)
+                    return result
+            }
+            node = node.treeParent
+        }
+        return null
+    }
+
+    private fun reparseBlock(block: ASTNode, start: Int, end: Int, newText: CharSequence, delta: Int): Result? {
+        val blockStart = block.startOffset
+        // the first token of the block must not be able to join the one before it
+        if (blockStart > start || (blockStart == start && (blockStart == 0 || !newText[blockStart - 1].isWhitespace())))
+            return null
+        var closing = block.treeNext
+        while (closing != null && isWhitespaceOrComment(closing))
+            closing = closing.treeNext
+        if (closing == null || closing.firstChildNode != null)
+            return null
+        val closingStart = closing.startOffset
+        if (end > closingStart)
+            return null
+
+        val text = newText.subSequence(blockStart, closingStart + delta).toString() + closing.text
+        val builder = createBuilder(text)
+        val parsed = parseBlock(builder)
+
+        val newBlock = parsed.firstChildNode ?: return null
+        if (newBlock.elementType != LuaTypes.BLOCK || newBlock.textLength == 0)
+            return null
+        // the closing token, either on its own or wrapped in an error element
+        val last = parsed.lastChildNode
+        val lastLeaf = TreeUtil.findLastLeaf(last) ?: return null
+        if (lastLeaf.elementType != closing.elementType || lastLeaf.textLength != closing.textLength)
+            return null
+        if (last != lastLeaf && (last.firstChildNode != lastLeaf || lastLeaf.treeNext != null))
+            return null
+        if (last.startOffset != text.length - closing.textLength)
+            return null
+        var gap = newBlock.treeNext
+        while (gap != null && gap != last) {
+            if (!isWhitespaceOrComment(gap))
+                return null
+            gap = gap.treeNext
+        }
+
+        (last as TreeElement).rawRemove()
+        (block as TreeElement).rawRemoveUpTo(closing as TreeElement)
+        closing.rawInsertBeforeMe(newBlock as TreeElement)
+        return Result(blockStart, closingStart + closing.textLength, delta, builder)
+    }
+
+    private fun createBuilder(text: CharSequence): PsiBuilderImpl {
+        return PsiBuilderFactory.getInstance().createBuilder(
+            definition,
+            FlexAdapter(_LuaLexer(LuaLanguageLevel.LUA54)),
+            text,
+            LuaCharTable
+        ) as PsiBuilderImpl
+    }
+
+    /**
+     * like [LuaParser.parseLight] with a block as root, but the block gets a root of its own instead of being collapsed into it
+     */
+    private fun parseBlock(builder: PsiBuilder): ASTNode {
+        val b = GeneratedParserUtilBase.adapt_builder_(REPARSE_ROOT, builder, LuaParser(), LuaParser.EXTENDS_SETS_)
+        val m = GeneratedParserUtilBase.enter_section_(b, 0, GeneratedParserUtilBase._COLLAPSE_, null)
+        val r = LuaParser.block(b, 0)
+        GeneratedParserUtilBase.exit_section_(b, 0, m, REPARSE_ROOT, r, true, GeneratedParserUtilBase.TRUE_CONDITION)
+        return b.treeBuilt
+    }
+
+    private fun isWhitespaceOrComment(node: ASTNode): Boolean {
+        val type = node.elementType
+        return type == TokenType.WHITE_SPACE || LuaParserDefinition.COMMENTS.contains(type)
+    }
+}
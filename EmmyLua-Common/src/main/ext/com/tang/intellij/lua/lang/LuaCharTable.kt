@@ -0,0 +1,97 @@
+package com.tang.intellij.lua.lang
+
+import com.intellij.openapi.util.text.StringUtil
+import com.intellij.util.CharTable
+import com.intellij.util.containers.ConcurrentWeakHashMap
+import com.intellij.util.text.ByteArrayCharSequence
+import com.intellij.util.text.CharSequenceSubSequence
+import gnu.trove.TObjectHashingStrategy
+import java.lang.ref.WeakReference
+
+/**
+ * The char table of all lua trees.
+ * Names and whitespace are interned once for the whole workspace instead of once per file, weakly,
+ * so a name no tree uses any more, like one typed halfway during an edit, is collected with the last tree using it.
+ * Keywords and operators are interned for good.
+ * Other tokens like strings, numbers and comments are (start, end) views on the immutable text they were parsed from
+ * instead of copies of it.
+ */
+object LuaCharTable : CharTable {
+    /**
+     * tokens longer than this are not interned, like in [com.intellij.psi.impl.source.CharTableImpl]
+     */
+    private const val INTERN_THRESHOLD = 40
+
+    private val strategy = object : TObjectHashingStrategy<CharSequence> {
+        override fun computeHashCode(text: CharSequence) = StringUtil.stringHashCode(text)
+
+        override fun equals(a: CharSequence, b: CharSequence) = StringUtil.equals(a, b)
+    }
+
+    // interned text -> itself, the key is weak and so is the value referencing it
+    private val table = ConcurrentWeakHashMap<CharSequence, WeakReference<String>>(1024, 0.75f, 16, strategy)
+
+    // keeps the keywords and operators in the table
+    private val keywords = listOf(
+        "and", "break", "do", "else", "elseif", "end", "false", "for", "function", "goto", "if", "in",
+        "local", "nil", "not", "or", "repeat", "return", "then", "true", "until", "while", "self",
+        "=", "==", "~=", "<", "<=", ">", ">=", "+", "-", "*", "/", "//", "%", "^", "#", "&", "|", "~", "<<", ">>",
+        "..", "...", ".", ":", "::", ",", ";", "(", ")", "[", "]", "{", "}", "--", "---"
+    ).map { intern(it).toString() }
+
+    override fun intern(text: CharSequence): CharSequence {
+        return intern(text, 0, text.length)
+    }
+
+    override fun intern(baseText: CharSequence, startOffset: Int, endOffset: Int): CharSequence {
+        val length = endOffset - startOffset
+        if (length == 0)
+            return ""
+        if (length > INTERN_THRESHOLD || !isInterned(baseText, startOffset, endOffset))
+            return view(baseText, startOffset, endOffset)
+        val probe = CharSequenceSubSequence(baseText, startOffset, endOffset)
+        table[probe]?.get()?.let { return it }
+        val text = probe.toString()
+        while (true) {
+            val ref = WeakReference(text)
+            val previous = table.putIfAbsent(text, ref) ?: return text
+            previous.get()?.let { return it }
+            // collected but not purged yet
+            if (table.replace(text, previous, ref))
+                return text
+        }
+    }
+
+    /**
+     * names and whitespace, the tokens that repeat across files
+     */
+    private fun isInterned(text: CharSequence, startOffset: Int, endOffset: Int): Boolean {
+        val first = text[startOffset]
+        if (first.isWhitespace()) {
+            for (i in startOffset + 1 until endOffset) {
+                if (!text[i].isWhitespace())
+                    return false
+            }
+            return true
+        }
+        if (!Character.isJavaIdentifierStart(first)) {
+            // a keyword or an operator, see [keywords]
+            return endOffset - startOffset <= 3 && !first.isDigit() && first != '"' && first != '\''
+        }
+        for (i in startOffset + 1 until endOffset) {
+            if (!Character.isJavaIdentifierPart(text[i]))
+                return false
+        }
+        return true
+    }
+
+    private fun view(baseText: CharSequence, startOffset: Int, endOffset: Int): CharSequence {
+        return when (baseText) {
+            is String, is ByteArrayCharSequence -> CharSequenceSubSequence(baseText, startOffset, endOffset)
+            // the text of a doc comment or another token, the view goes to the text below it
+            is CharSequenceSubSequence -> baseText.subSequence(startOffset, endOffset)
+            // a text that may change or is slow to read at random, like an edited one
+            else -> baseText.subSequence(startOffset, endOffset).toString()
+        }
+    }
+}
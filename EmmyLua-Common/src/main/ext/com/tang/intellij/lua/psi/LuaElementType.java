@@ -20,11 +20,11 @@ import com.intellij.lang.ASTNode;
 import com.intellij.lang.PsiBuilder;
 import com.intellij.lang.PsiBuilderFactory;
 import com.intellij.lang.PsiParser;
-import com.intellij.psi.tree.ICustomParsingType;
 import com.intellij.psi.tree.IElementType;
-import com.intellij.util.CharTable;
+import com.intellij.psi.tree.ILazyParseableElementType;
 import com.tang.intellij.lua.comment.lexer.LuaDocLexer;
 import com.tang.intellij.lua.comment.parser.LuaDocParser;
+import com.tang.intellij.lua.lang.LuaCharTable;
 import com.tang.intellij.lua.lang.LuaLanguage;
 import com.tang.intellij.lua.lang.LuaParserDefinition;
 import org.jetbrains.annotations.NotNull;
@@ -38,17 +38,19 @@ public class LuaElementType extends IElementType {
         super(debugName, LuaLanguage.INSTANCE);
     }
 
-    static class DocCommentType extends IElementType implements ICustomParsingType {
+    /**
+     * doc comments are only lexed with the code, the doc tree of one is parsed when it is first walked into
+     */
+    static class DocCommentType extends ILazyParseableElementType {
         DocCommentType() {
             super("DOC_COMMENT", LuaLanguage.INSTANCE);
         }
 
-        @NotNull
         @Override
-        public ASTNode parse(@NotNull CharSequence text, @NotNull CharTable table) {
+        public ASTNode parseContents(@NotNull ASTNode chameleon) {
             PsiParser parser = new LuaDocParser();
-            PsiBuilder builder = PsiBuilderFactory.getInstance().createBuilder(new LuaParserDefinition(), new LuaDocLexer(), text);
-            return parser.parse(this, builder);
+            PsiBuilder builder = PsiBuilderFactory.getInstance().createBuilder(new LuaParserDefinition(), new LuaDocLexer(), chameleon.getChars(), LuaCharTable.INSTANCE);
+            return parser.parse(this, builder).getFirstChildNode();
         }
     }
 
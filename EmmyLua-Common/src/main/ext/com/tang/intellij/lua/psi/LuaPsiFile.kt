@@ -5,7 +5,9 @@ import com.intellij.lang.ASTNode
 import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.psi.PsiElement
 import com.intellij.psi.PsiFile
+import com.tang.intellij.lua.stubs.IndexPostings
 import com.tang.intellij.lua.stubs.LuaFileStub
+import java.util.concurrent.atomic.AtomicInteger
 
 class LuaPsiFile(private val myNode: ASTNode) : ASTDelegatePsiElement(), PsiFile, LuaTypeGuessable, LuaDeclarationScope {
 
@@ -14,6 +16,11 @@ class LuaPsiFile(private val myNode: ASTNode) : ASTDelegatePsiElement(), PsiFile
     var indexed = false
     var indexing = false
 
+    /**
+     * what the indexer wrote for this tree, null until it is indexed
+     */
+    var postings: IndexPostings? = null
+
     override fun getVirtualFile(): VirtualFile {
         return virtualFile!!
     }
@@ -22,7 +29,17 @@ class LuaPsiFile(private val myNode: ASTNode) : ASTDelegatePsiElement(), PsiFile
         virtualFile = file
     }
 
-    val id = idCount++
+    /**
+     * a tree parsed again for the same file takes over the id of the previous one, see [com.tang.intellij.lua.stubs.reindex]
+     */
+    var id = nextId()
+
+    /**
+     * the id the postings [com.tang.intellij.lua.stubs.DeferredIndex] resolved for the file are written under,
+     * negative so it is never taken by another file
+     */
+    val deferredId: Int
+        get() = deferredId(id)
 
     override fun getNode(): ASTNode = myNode
 
@@ -50,13 +67,28 @@ class LuaPsiFile(private val myNode: ASTNode) : ASTDelegatePsiElement(), PsiFile
 
     val fileElement: ASTNode? = node
 
+    // bumped when a part of the tree is reparsed in place, see [subtreeChanged]
+    @Volatile
+    private var modificationCount = 0L
+
     override fun getModificationStamp(): Long {
-        return 0
+        return modificationCount
+    }
+
+    override fun subtreeChanged() {
+        modificationCount++
     }
 
     val isContentsLoaded: Boolean get() = true
 
     companion object {
-        private var idCount = 0
+        private val idCount = AtomicInteger()
+
+        /**
+         * ids are shared with lazily indexed files that have no psi yet, see [com.tang.intellij.lua.stubs.index.LazyStubSource]
+         */
+        fun nextId(): Int = idCount.getAndIncrement()
+
+        fun deferredId(id: Int) = -1 - id
     }
 }
\ No newline at end of file
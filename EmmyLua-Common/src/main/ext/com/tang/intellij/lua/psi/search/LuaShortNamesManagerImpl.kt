@@ -47,7 +47,9 @@ class LuaShortNamesManagerImpl : LuaShortNamesManager() {
     }
 
     override fun getClassMembers(clazzName: String, context: SearchContext): Collection<LuaClassMember> {
-        return LuaClassMemberIndex.instance.get(clazzName.hashCode(), context.project, context.scope)
+        val members = mutableListOf<LuaClassMember>()
+        LuaClassMemberIndex.instance.processMembers(clazzName, context.scope, Processor { members.add(it) })
+        return members
     }
 
     override fun processAllMembers(type: ITyClass, fieldName: String, context: SearchContext, processor: Processor<LuaClassMember>): Boolean {
@@ -56,7 +58,12 @@ class LuaShortNamesManagerImpl : LuaShortNamesManager() {
     }
 
     override fun findAlias(name: String, context: SearchContext): LuaTypeAlias? {
-        return LuaAliasIndex.instance.get(name, context.project, context.scope).firstOrNull()
+        var alias: LuaTypeAlias? = null
+        LuaAliasIndex.instance.process(name, context.project, context.scope, Processor {
+            alias = it
+            false
+        })
+        return alias
     }
 
     override fun processAllAlias(project: Project, processor: Processor<String>): Boolean {
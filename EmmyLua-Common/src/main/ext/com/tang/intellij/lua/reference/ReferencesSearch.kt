@@ -31,13 +31,13 @@ object ReferencesSearch {
             val name = if (element is PsiNamedElement) element.name else element.text
             val nameHash = name?.hashCode()
             val project = element.project
-            project.process { file ->
+            project.process(scope) { file ->
                 val vFile = file.virtualFile
-                if (vFile is ILuaFile && scope.contains(file.virtualFile)) {
-                    vFile.processWords { word ->
+                if (vFile is ILuaFile) {
+                    vFile.processWords { hashCode, start, _ ->
                         var continueRun = true
-                        if (word.hashCode == nameHash) {
-                            val elementAt = file.findElementAt(word.start)
+                        if (hashCode == nameHash) {
+                            val elementAt = file.findElementAt(start)
                             if (elementAt != null) {
                                 continueRun = processReferences(elementAt, consumer)
                             }
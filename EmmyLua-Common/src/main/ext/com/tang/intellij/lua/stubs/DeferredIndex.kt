@@ -0,0 +1,230 @@
+package com.tang.intellij.lua.stubs
+
+import com.tang.intellij.lua.psi.LuaPsiElement
+import com.tang.intellij.lua.psi.LuaPsiFile
+import com.tang.intellij.lua.stubs.index.StubIndex
+import com.tang.lsp.IWorkspace
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * The second indexing pass.
+ *
+ * [index] writes what it can read off the tree of a file and leaves the elements whose class has to be inferred,
+ * like the methods of `function A:m()` and the fields of `A.b = 1`, to this pass. They are resolved on the [executor]
+ * the workspace sets, after a load has indexed all of its files, so bulk indexing does not run type inference and
+ * a resolution sees all files indexed before it instead of the ones that happened to be loaded first.
+ * Queries do not wait for it, they read the postings resolved so far. The resolved postings of a file are written under
+ * its [LuaPsiFile.deferredId]. They depend on the other files, so the stub cache keeps the deferred elements instead,
+ * a file restored from it is resolved again.
+ *
+ * A resolution records the keys it read, a later write to one of them resolves the file again.
+ * Resolutions run on one thread at a time. Without an [executor] the next query runs them, and a query on another thread
+ * waits for the running one. Each runs in [IWorkspace.read], so the trees it infers over are not reparsed in place meanwhile.
+ */
+object DeferredIndex {
+    private class Tree(val psi: LuaPsiFile, val elements: List<LuaPsiElement>)
+
+    private class DeferredFile(@Volatile var tree: Tree) {
+        var postings = IndexPostings()
+        var dependencies: Map<StubIndex<*, *>, Set<Any>> = emptyMap()
+        var removed = false
+    }
+
+    // recorded for a query over all keys of an index
+    private val ALL_KEYS = Any()
+
+    // a file resolved more often in one run keeps changing what it depends on, it is left to the next run
+    private const val MAX_RUNS = 4
+
+    private val files = ConcurrentHashMap<Int, DeferredFile>()
+    private val pending = ConcurrentHashMap.newKeySet<Int>()
+    // set after a file is added to [pending], a query only looks at it then
+    @Volatile
+    private var dirty = false
+
+    // index -> key -> ids of the files whose resolution read the key
+    private val dependents = ConcurrentHashMap<StubIndex<*, *>, ConcurrentHashMap<Any, MutableSet<Int>>>()
+
+    /**
+     * runs the resolutions off the query threads, a run is scheduled when a file becomes pending
+     */
+    @Volatile
+    var executor: Executor? = null
+    private val scheduled = AtomicBoolean()
+
+    private val lock = ReentrantLock()
+    @Volatile
+    private var resolver: Thread? = null
+    // keys read by the running resolution, only used by the resolver thread
+    private var reads: MutableMap<StubIndex<*, *>, MutableSet<Any>>? = null
+
+    /**
+     * the deferred [elements] of the tree [file] has been indexed with, resolved before the next query
+     */
+    fun update(file: LuaPsiFile, elements: List<LuaPsiElement>) {
+        if (elements.isEmpty() && !files.containsKey(file.id))
+            return
+        val tree = Tree(file, elements)
+        files.compute(file.id) { _, deferredFile ->
+            deferredFile?.also { it.tree = tree } ?: DeferredFile(tree)
+        }
+        addPending(file.id)
+    }
+
+    private fun addPending(fileId: Int) {
+        pending.add(fileId)
+        dirty = true
+        val executor = executor ?: return
+        if (!scheduled.compareAndSet(false, true))
+            return
+        try {
+            executor.execute {
+                // a file added while this run resolves schedules the next one
+                scheduled.set(false)
+                resolvePending()
+            }
+        } catch (e: RejectedExecutionException) {
+            scheduled.set(false)
+        }
+    }
+
+    fun remove(fileId: Int) {
+        val deferredFile = files.remove(fileId) ?: return
+        pending.remove(fileId)
+        synchronized(deferredFile) {
+            deferredFile.removed = true
+            IndexSink.removePostings(LuaPsiFile.deferredId(fileId))
+            unregister(fileId, deferredFile.dependencies)
+        }
+    }
+
+    /**
+     * the deferred elements of the tree [file] has been indexed with, empty if it has none
+     */
+    fun deferred(file: LuaPsiFile): List<LuaPsiElement> {
+        val tree = files[file.id]?.tree ?: return emptyList()
+        return if (tree.psi === file) tree.elements else emptyList()
+    }
+
+    /**
+     * whether a resolution runs on this thread and records the keys it reads
+     */
+    val isResolving: Boolean
+        get() = resolver === Thread.currentThread()
+
+    /**
+     * called by [StubIndex] before a query reads [key] of [index], null for a query over all keys
+     */
+    fun beforeRead(index: StubIndex<*, *>, key: Any?) {
+        // kept small, it runs before every query
+        if (resolver != null || dirty)
+            record(index, key)
+    }
+
+    private fun record(index: StubIndex<*, *>, key: Any?) {
+        if (isResolving)
+            reads?.getOrPut(index) { HashSet() }?.add(key ?: ALL_KEYS)
+        else if (executor == null)
+            resolvePending()
+    }
+
+    /**
+     * called by [StubIndex] after the postings under [key] of [index] changed
+     */
+    fun written(index: StubIndex<*, *>, key: Any) {
+        val keys = dependents[index] ?: return
+        keys[key]?.forEach { addPending(it) }
+        keys[ALL_KEYS]?.forEach { addPending(it) }
+    }
+
+    /**
+     * resolve the files indexed or changed since the last run, including the ones whose dependencies changed meanwhile
+     */
+    fun resolvePending() {
+        if (lock.isHeldByCurrentThread)
+            return
+        lock.lock()
+        try {
+            resolver = Thread.currentThread()
+            // cleared before looking at the files, one added later sets it again
+            dirty = false
+            val runs = HashMap<Int, Int>()
+            val unstable = mutableSetOf<Int>()
+            while (true) {
+                val iterator = pending.iterator()
+                if (!iterator.hasNext())
+                    break
+                val fileId = iterator.next()
+                pending.remove(fileId)
+                val count = (runs[fileId] ?: 0) + 1
+                runs[fileId] = count
+                if (count <= MAX_RUNS)
+                    resolve(fileId)
+                else
+                    unstable.add(fileId)
+            }
+            if (unstable.isNotEmpty()) {
+                // retried by the next run, not this one, it would only go round again
+                pending.addAll(unstable)
+                System.err.println("deferred index: ${unstable.size} files still changing after $MAX_RUNS resolutions, left to the next run")
+            }
+        } finally {
+            resolver = null
+            reads = null
+            lock.unlock()
+        }
+    }
+
+    private fun resolve(fileId: Int) {
+        val deferredFile = files[fileId] ?: return
+        val tree = deferredFile.tree
+        val collector = IndexCollector()
+        val reads = HashMap<StubIndex<*, *>, MutableSet<Any>>()
+        this.reads = reads
+        try {
+            // inference walks the trees of other files too, none of them may be reparsed in place meanwhile
+            val workspace = tree.psi.project.getUserData(IWorkspace.KEY)
+            if (workspace != null)
+                workspace.read { tree.elements.forEach { resolveDeferred(tree.psi, it, collector) } }
+            else
+                tree.elements.forEach { resolveDeferred(tree.psi, it, collector) }
+        } finally {
+            this.reads = null
+        }
+        synchronized(deferredFile) {
+            // changed meanwhile, pending again
+            if (deferredFile.removed || deferredFile.tree !== tree)
+                return
+            val changed = deferredFile.postings.diff(collector.postings)
+            changed.forEach { (index, changes) -> IndexSink.updateStubs(tree.psi.deferredId, index, changes) }
+            deferredFile.postings = collector.postings
+            unregister(fileId, deferredFile.dependencies)
+            register(fileId, reads)
+            deferredFile.dependencies = reads
+        }
+        // nothing deferred and nothing written, forget the file
+        if (tree.elements.isEmpty()) {
+            files.computeIfPresent(fileId) { _, it -> if (it === deferredFile && it.tree === tree) null else it }
+        }
+    }
+
+    private fun register(fileId: Int, reads: Map<StubIndex<*, *>, Set<Any>>) {
+        reads.forEach { (index, keys) ->
+            val map = dependents.computeIfAbsent(index) { ConcurrentHashMap() }
+            keys.forEach { key -> map.computeIfAbsent(key) { ConcurrentHashMap.newKeySet() }.add(fileId) }
+        }
+    }
+
+    private fun unregister(fileId: Int, reads: Map<StubIndex<*, *>, Set<Any>>) {
+        reads.forEach { (index, keys) ->
+            val map = dependents[index] ?: return@forEach
+            keys.forEach { key ->
+                map.computeIfPresent(key) { _, ids -> ids.remove(fileId); if (ids.isEmpty()) null else ids }
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.tang.intellij.lua.stubs
+
+import com.intellij.psi.PsiElement
+import com.intellij.psi.PsiFile
+import com.intellij.psi.stubs.StubInputStream
+import com.intellij.psi.stubs.StubOutputStream
+import com.intellij.util.indexing.IndexId
+import com.intellij.util.io.StringRef
+import com.tang.intellij.lua.stubs.index.ClassMemberKey
+
+/**
+ * An element kept by its range and type so that it can be found again in a tree parsed from the same text.
+ */
+open class ElementLocation(val startOffset: Int, val length: Int, val elementType: String) {
+    fun find(file: PsiFile): PsiElement? {
+        var element = file.findElementAt(startOffset)
+        while (element != null && element !is PsiFile) {
+            val node = element.node
+            if (node.startOffset != startOffset || node.textLength > length)
+                break
+            if (node.textLength == length && node.elementType.toString() == elementType)
+                return element
+            element = element.parent
+        }
+        return null
+    }
+
+    companion object {
+        fun create(element: PsiElement): ElementLocation {
+            val node = element.node
+            return ElementLocation(node.startOffset, node.textLength, node.elementType.toString())
+        }
+
+        fun serialize(location: ElementLocation, stubOutputStream: StubOutputStream) {
+            stubOutputStream.writeVarInt(location.startOffset)
+            stubOutputStream.writeVarInt(location.length)
+            stubOutputStream.writeName(location.elementType)
+        }
+
+        fun deserialize(stubInputStream: StubInputStream): ElementLocation {
+            val startOffset = stubInputStream.readVarInt()
+            val length = stubInputStream.readVarInt()
+            val elementType = StringRef.toString(stubInputStream.readName())
+            return ElementLocation(startOffset, length, elementType)
+        }
+    }
+}
+
+/**
+ * One entry written to the stub indexes by the indexer, with the location of its element.
+ */
+class IndexOccurrence(
+    val index: IndexId<*, *>,
+    val key: Any,
+    startOffset: Int,
+    length: Int,
+    elementType: String
+) : ElementLocation(startOffset, length, elementType) {
+
+    companion object {
+        /**
+         * bump when the indexer changes what it writes, cached occurrences of other versions are dropped
+         */
+        const val VERSION = 3
+
+        private const val KEY_INT = 0
+        private const val KEY_STRING = 1
+        private const val KEY_CLASS_MEMBER = 2
+
+        private val INDEXES = arrayOf<IndexId<*, *>>(
+            StubKeys.CLASS_MEMBER,
+            StubKeys.SHORT_NAME,
+            StubKeys.CLASS,
+            StubKeys.SUPER_CLASS,
+            StubKeys.ALIAS,
+            StubKeys.CONST
+        )
+
+        fun create(index: IndexId<*, *>, key: Any, value: PsiElement): IndexOccurrence {
+            val node = value.node
+            return IndexOccurrence(index, key, node.startOffset, node.textLength, node.elementType.toString())
+        }
+
+        fun serialize(occurrence: IndexOccurrence, stubOutputStream: StubOutputStream) {
+            stubOutputStream.writeByte(INDEXES.indexOf(occurrence.index))
+            when (val key = occurrence.key) {
+                is Int -> {
+                    stubOutputStream.writeByte(KEY_INT)
+                    stubOutputStream.writeInt(key)
+                }
+                is ClassMemberKey -> {
+                    stubOutputStream.writeByte(KEY_CLASS_MEMBER)
+                    stubOutputStream.writeName(key.className)
+                    stubOutputStream.writeName(key.name)
+                }
+                else -> {
+                    stubOutputStream.writeByte(KEY_STRING)
+                    stubOutputStream.writeName(key.toString())
+                }
+            }
+            ElementLocation.serialize(occurrence, stubOutputStream)
+        }
+
+        fun deserialize(stubInputStream: StubInputStream): IndexOccurrence {
+            val index = INDEXES[stubInputStream.readByte().toInt()]
+            val key: Any = when (stubInputStream.readByte().toInt()) {
+                KEY_INT -> stubInputStream.readInt()
+                KEY_CLASS_MEMBER -> ClassMemberKey(StringRef.toString(stubInputStream.readName()), StringRef.toString(stubInputStream.readName()))
+                else -> StringRef.toString(stubInputStream.readName())
+            }
+            val location = ElementLocation.deserialize(stubInputStream)
+            return IndexOccurrence(index, key, location.startOffset, location.length, location.elementType)
+        }
+    }
+}
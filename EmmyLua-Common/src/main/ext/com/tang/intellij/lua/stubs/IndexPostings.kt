@@ -0,0 +1,74 @@
+package com.tang.intellij.lua.stubs
+
+import com.intellij.psi.PsiElement
+import com.intellij.util.indexing.IndexId
+
+/**
+ * The elements one file wrote to the stub indexes, by index and key in the order they were written.
+ */
+class IndexPostings {
+    private val map = LinkedHashMap<IndexId<*, *>, LinkedHashMap<Any, MutableList<PsiElement>>>()
+
+    fun add(index: IndexId<*, *>, key: Any, element: PsiElement) {
+        map.getOrPut(index) { LinkedHashMap() }.getOrPut(key) { mutableListOf() }.add(element)
+    }
+
+    fun get(index: IndexId<*, *>): Map<Any, List<PsiElement>> {
+        return map[index] ?: emptyMap()
+    }
+
+    fun forEach(action: (index: IndexId<*, *>, keys: Map<Any, List<PsiElement>>) -> Unit) {
+        map.forEach { (index, keys) -> action(index, keys) }
+    }
+
+    /**
+     * the postings without the elements [keep] rejects
+     */
+    fun filter(keep: (PsiElement) -> Boolean): IndexPostings {
+        val postings = IndexPostings()
+        map.forEach { (index, keys) ->
+            keys.forEach { (key, elements) ->
+                elements.forEach { if (keep(it)) postings.add(index, key, it) }
+            }
+        }
+        return postings
+    }
+
+    /**
+     * @return per index the keys whose elements differ in [other], with the elements of [other], empty if a key is gone
+     */
+    fun diff(other: IndexPostings): Map<IndexId<*, *>, Map<Any, List<PsiElement>>> {
+        val result = LinkedHashMap<IndexId<*, *>, Map<Any, List<PsiElement>>>()
+        val indexes = LinkedHashSet(map.keys)
+        indexes.addAll(other.map.keys)
+        for (index in indexes) {
+            val old = get(index)
+            val new = other.get(index)
+            val changes = LinkedHashMap<Any, List<PsiElement>>()
+            old.forEach { (key, elements) ->
+                val newElements = new[key]
+                if (newElements == null)
+                    changes[key] = emptyList()
+                else if (!sameElements(elements, newElements))
+                    changes[key] = newElements
+            }
+            new.forEach { (key, elements) ->
+                if (!old.containsKey(key))
+                    changes[key] = elements
+            }
+            if (changes.isNotEmpty())
+                result[index] = changes
+        }
+        return result
+    }
+
+    private fun sameElements(a: List<PsiElement>, b: List<PsiElement>): Boolean {
+        if (a.size != b.size)
+            return false
+        for (i in a.indices) {
+            if (a[i] !== b[i])
+                return false
+        }
+        return true
+    }
+}
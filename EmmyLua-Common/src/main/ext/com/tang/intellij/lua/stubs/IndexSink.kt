@@ -2,33 +2,94 @@ package com.tang.intellij.lua.stubs
 
 import com.intellij.psi.PsiElement
 import com.intellij.util.indexing.IndexId
+import com.tang.intellij.lua.psi.LuaPsiElement
 import com.tang.intellij.lua.psi.LuaPsiFile
 import com.tang.intellij.lua.stubs.index.*
 
 abstract class IndexSink {
     abstract fun <Psi : PsiElement, K> occurrence(indexKey: IndexId<K, Psi>, key: K, value: Psi)
+
+    /**
+     * the elements whose keys depend on inferred types, see [DeferredIndex]
+     */
+    val deferred = mutableListOf<LuaPsiElement>()
+
+    fun defer(element: LuaPsiElement) {
+        deferred.add(element)
+    }
+
     companion object {
         fun removeStubs(file: LuaPsiFile) {
-            LuaClassIndex.instance.removeStubs(file)
-            LuaClassMemberIndex.instance.removeStubs(file)
-            LuaSuperClassIndex.instance.removeStubs(file)
-            LuaShortNameIndex.removeStubs(file)
-            LuaAliasIndex.instance.removeStubs(file)
-            LuaConstIndex.instance.removeStubs(file)
+            removeStubs(file.id)
+        }
+
+        /**
+         * remove the postings of file [fileId], the ones [DeferredIndex] resolved for it too
+         */
+        fun removeStubs(fileId: Int) {
+            removePostings(fileId)
+            DeferredIndex.remove(fileId)
+        }
+
+        internal fun removePostings(fileId: Int) {
+            LuaClassIndex.instance.removeStubs(fileId)
+            LuaClassMemberIndex.instance.removeStubs(fileId)
+            LuaSuperClassIndex.instance.removeStubs(fileId)
+            LuaShortNameIndex.removeStubs(fileId)
+            LuaAliasIndex.instance.removeStubs(fileId)
+            LuaConstIndex.instance.removeStubs(fileId)
+        }
+
+        /**
+         * replace the elements of file [fileId] under each key of [changes], a key without elements is removed
+         */
+        fun updateStubs(fileId: Int, index: IndexId<*, *>, changes: Map<Any, List<PsiElement>>) {
+            when (index) {
+                StubKeys.CLASS -> LuaClassIndex.instance.updateStubs(fileId, changes)
+                StubKeys.CLASS_MEMBER -> LuaClassMemberIndex.instance.updateStubs(fileId, changes)
+                StubKeys.SUPER_CLASS -> LuaSuperClassIndex.instance.updateStubs(fileId, changes)
+                StubKeys.SHORT_NAME -> LuaShortNameIndex.updateStubs(fileId, changes)
+                StubKeys.ALIAS -> LuaAliasIndex.instance.updateStubs(fileId, changes)
+                StubKeys.CONST -> LuaConstIndex.instance.updateStubs(fileId, changes)
+            }
+        }
+
+        fun lazyOccurrence(fileId: Int, occurrence: IndexOccurrence, source: LazyStubSource) {
+            val key = occurrence.key
+            when (occurrence.index) {
+                StubKeys.CLASS -> LuaClassIndex.instance.lazyOccurrence(fileId, key, source)
+                StubKeys.CLASS_MEMBER -> LuaClassMemberIndex.instance.lazyOccurrence(fileId, key, source)
+                StubKeys.SUPER_CLASS -> LuaSuperClassIndex.instance.lazyOccurrence(fileId, key, source)
+                StubKeys.SHORT_NAME -> LuaShortNameIndex.lazyOccurrence(fileId, key, source)
+                StubKeys.ALIAS -> LuaAliasIndex.instance.lazyOccurrence(fileId, key, source)
+                StubKeys.CONST -> LuaConstIndex.instance.lazyOccurrence(fileId, key, source)
+            }
         }
     }
 }
 
-class IndexSinkImpl(val file: LuaPsiFile) : IndexSink() {
+/**
+ * records the occurrences of [file] and [write]s them once it is indexed, each key of the file once
+ */
+class IndexSinkImpl(val file: LuaPsiFile) : IndexCollector() {
+
+    fun write() {
+        postings.forEach { index, changes -> IndexSink.updateStubs(file.id, index, changes) }
+    }
+}
+
+/**
+ * records the occurrences of a file without writing them to the indexes
+ */
+open class IndexCollector : IndexSink() {
+
+    val occurrences = mutableListOf<IndexOccurrence>()
+    val postings = IndexPostings()
 
     override fun <Psi : PsiElement, K> occurrence(indexKey: IndexId<K, Psi>, key: K, value: Psi) {
-        when (indexKey) {
-            StubKeys.CLASS -> LuaClassIndex.instance.occurrence(file, key, value)
-            StubKeys.CLASS_MEMBER -> LuaClassMemberIndex.instance.occurrence(file, key, value)
-            StubKeys.SUPER_CLASS -> LuaSuperClassIndex.instance.occurrence(file, key, value)
-            StubKeys.SHORT_NAME -> LuaShortNameIndex.occurrence(file, key, value)
-            StubKeys.ALIAS -> LuaAliasIndex.instance.occurrence(file, key, value)
-            StubKeys.CONST -> LuaConstIndex.instance.occurrence(file, key, value)
+        if (key != null) {
+            occurrences.add(IndexOccurrence.create(indexKey, key, value))
+            postings.add(indexKey, key, value)
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,80 @@
+package com.tang.intellij.lua.stubs
+
+import com.intellij.psi.stubs.StubInputStream
+import com.intellij.psi.stubs.StubOutputStream
+import com.intellij.util.io.StringRef
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * names are written once and referenced by id afterwards, see [LuaStubInputStream]
+ */
+class LuaStubOutputStream(out: OutputStream) : StubOutputStream(out) {
+    private val names = mutableMapOf<String, Int>()
+
+    override fun writeUTFFast(arg: String) {
+        writeUTF(arg)
+    }
+
+    override fun writeName(arg: String?) {
+        if (arg == null) {
+            writeVarInt(0)
+            return
+        }
+        val id = names[arg]
+        if (id != null) {
+            writeVarInt(id + 1)
+        } else {
+            val newId = names.size
+            names[arg] = newId
+            writeVarInt(newId + 1)
+            writeUTF(arg)
+        }
+    }
+
+    override fun writeVarInt(value: Int) {
+        var v = value
+        while (v and 0x7f.inv() != 0) {
+            writeByte((v and 0x7f) or 0x80)
+            v = v ushr 7
+        }
+        writeByte(v)
+    }
+
+    override fun getStringId(value: String): Int {
+        return names[value] ?: -1
+    }
+}
+
+class LuaStubInputStream(input: InputStream) : StubInputStream(input) {
+    private val names = mutableListOf<String>()
+
+    override fun readUTFFast(): String {
+        return readUTF()
+    }
+
+    override fun readName(): StringRef? {
+        val id = readVarInt() - 1
+        if (id < 0)
+            return null
+        if (id == names.size)
+            names.add(readUTF())
+        return StringRef.fromString(names[id])
+    }
+
+    override fun readVarInt(): Int {
+        var value = 0
+        var shift = 0
+        while (true) {
+            val b = readUnsignedByte()
+            value = value or ((b and 0x7f) shl shift)
+            if (b and 0x80 == 0)
+                return value
+            shift += 7
+        }
+    }
+
+    override fun stringFromId(id: Int): String {
+        return names[id]
+    }
+}
@@ -3,7 +3,6 @@ package com.tang.intellij.lua.stubs.index
 import com.intellij.openapi.project.Project
 import com.intellij.psi.search.GlobalSearchScope
 import com.intellij.util.Processor
-import com.intellij.util.containers.ContainerUtil
 import com.tang.intellij.lua.comment.psi.LuaDocTagClass
 import com.tang.intellij.lua.search.SearchContext
 import com.tang.intellij.lua.stubs.StubKeys
@@ -29,8 +28,7 @@ class LuaClassIndex : StubIndex<String, LuaDocTagClass>() {
         }
 
         fun process(key: String, project: Project, scope: GlobalSearchScope, processor: Processor<LuaDocTagClass>): Boolean {
-            val collection = instance.get(key, project, scope)
-            return ContainerUtil.process(collection, processor)
+            return instance.process(key, project, scope, processor)
         }
 
         fun processKeys(project: Project, processor: Processor<String>): Boolean {
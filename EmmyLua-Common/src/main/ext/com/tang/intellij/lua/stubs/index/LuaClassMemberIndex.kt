@@ -16,29 +16,89 @@
 
 package com.tang.intellij.lua.stubs.index
 
+import com.intellij.psi.search.GlobalSearchScope
 import com.intellij.util.Processor
-import com.intellij.util.containers.ContainerUtil
 import com.tang.intellij.lua.comment.psi.LuaDocTagField
 import com.tang.intellij.lua.psi.LuaClassMember
 import com.tang.intellij.lua.psi.LuaClassMethod
 import com.tang.intellij.lua.psi.LuaTableField
 import com.tang.intellij.lua.search.SearchContext
+import com.tang.intellij.lua.stubs.DeferredIndex
 import com.tang.intellij.lua.stubs.StubKeys
 import com.tang.intellij.lua.ty.ITyClass
 import com.tang.intellij.lua.ty.TyClass
 import com.tang.intellij.lua.ty.TyParameter
+import java.util.concurrent.ConcurrentHashMap
 
-class LuaClassMemberIndex : StubIndex<Int, LuaClassMember>() {
+/**
+ * the key of member [name] of class [className]
+ */
+data class ClassMemberKey(val className: String, val name: String)
+
+/**
+ * Members by class name and then by member name, a lookup takes both names as they are,
+ * and the members of a class are the entries under its name.
+ */
+class LuaClassMemberIndex : StubIndex<ClassMemberKey, LuaClassMember>() {
     override fun getKey() = StubKeys.CLASS_MEMBER
 
+    // class name -> member name -> entry
+    private val classes = ConcurrentHashMap<String, ConcurrentHashMap<String, StubEntry>>()
+
+    override fun entry(key: ClassMemberKey) = classes[key.className]?.get(key.name)
+
+    override fun entries(): Iterable<StubEntry> = classes.values.asSequence().flatMap { it.values.asSequence() }.asIterable()
+
+    override fun computeEntry(key: ClassMemberKey, code: (stubEntry: StubEntry?) -> StubEntry?) {
+        classes.compute(key.className) { _, members ->
+            val map = members ?: ConcurrentHashMap()
+            map.compute(key.name) { _, stubEntry -> code(stubEntry) }
+            if (map.isEmpty()) null else map
+        }
+    }
+
+    // a query for all members of a class depends on the class name
+    override fun written(key: ClassMemberKey) {
+        super.written(key)
+        DeferredIndex.written(this, key.className)
+    }
+
+    fun processMember(className: String, name: String, scope: GlobalSearchScope, processor: Processor<in LuaClassMember>): Boolean {
+        // the key is only built for a resolution that records what it reads
+        beforeRead(if (DeferredIndex.isResolving) ClassMemberKey(className, name) else null)
+        var stubEntry = classes[className]?.get(name)
+        if (indexLazy(stubEntry, scope))
+            stubEntry = classes[className]?.get(name)
+        return process(stubEntry, scope, processor)
+    }
+
+    fun processMembers(className: String, scope: GlobalSearchScope, processor: Processor<in LuaClassMember>): Boolean {
+        beforeRead(className)
+        var members = classes[className] ?: return true
+        var lazy = false
+        for (stubEntry in members.values) {
+            if (indexLazy(stubEntry, scope))
+                lazy = true
+        }
+        if (lazy)
+            members = classes[className] ?: return true
+        for (stubEntry in members.values) {
+            if (!process(stubEntry, scope, processor))
+                return false
+        }
+        return true
+    }
+
     companion object {
         val instance = LuaClassMemberIndex()
 
-        fun process(key: String, context: SearchContext, processor: Processor<LuaClassMember>): Boolean {
+        /**
+         * process all members of class [className]
+         */
+        fun process(className: String, context: SearchContext, processor: Processor<LuaClassMember>): Boolean {
             if (context.isDumb)
                 return false
-            val all = LuaClassMemberIndex.instance.get(key.hashCode(), context.project, context.scope)
-            return ContainerUtil.process(all, processor)
+            return instance.processMembers(className, context.scope, processor)
         }
 
         fun process(
@@ -48,8 +108,7 @@ class LuaClassMemberIndex : StubIndex<Int, LuaClassMember>() {
             processor: Processor<LuaClassMember>,
             deep: Boolean = true
         ): Boolean {
-            val key = "$className*$fieldName"
-            if (!process(key, context, processor))
+            if (context.isDumb || !instance.processMember(className, fieldName, context.scope, processor))
                 return false
 
             if (deep) {
@@ -84,8 +143,7 @@ class LuaClassMemberIndex : StubIndex<Int, LuaClassMember>() {
             processor: Processor<LuaClassMember>,
             deep: Boolean = true
         ): Boolean {
-            val key = "$className*$fieldName"
-            if (!process(key, context, processor))
+            if (context.isDumb || !instance.processMember(className, fieldName, context.scope, processor))
                 return false
 
             if (deep) {
@@ -200,10 +258,5 @@ class LuaClassMemberIndex : StubIndex<Int, LuaClassMember>() {
             }, deep)
             return target
         }
-
-        /*fun indexStub(indexSink: IndexSink, className: String, memberName: String) {
-            indexSink.occurrence(StubKeys.CLASS_MEMBER, className.hashCode())
-            indexSink.occurrence(StubKeys.CLASS_MEMBER, "$className*$memberName".hashCode())
-        }*/
     }
 }
\ No newline at end of file
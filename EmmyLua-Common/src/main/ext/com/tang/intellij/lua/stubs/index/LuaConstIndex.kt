@@ -17,12 +17,14 @@ class LuaConstIndex: StubIndex<Int, LuaPsiElement>() {
 
     fun isConst(className: String, fieldName: String, context: SearchContext): Boolean {
         val key = "$className*$fieldName"
-        return get(key.hashCode(), context.project, context.scope).size == 1
+        var count = 0
+        process(key.hashCode(), context.project, context.scope, Processor { ++count < 2 })
+        return count == 1
     }
 
     fun isConstLocal(filePath: String, name: String, context: SearchContext): Boolean{
         val key = "$filePath*$name"
-        return get(key.hashCode(), context.project, context.scope).size == 0
+        return process(key.hashCode(), context.project, context.scope, Processor { false })
     }
 
     companion object {
@@ -14,6 +14,16 @@ private fun encodeURL(src: String): String {
     return src.split(Regex("[/\\\\]")).joinToString("/") { URLEncoder.encode(it, "UTF-8") }
 }
 
+/**
+ * the string files are compared by, "file:/a" from [File.toURI] and "file:///a" from [java.nio.file.Path.toUri] or a client are the same file
+ */
+private fun canonical(uri: URI): String {
+    val str = uri.toString().toLowerCase()
+    if (uri.rawAuthority == null && str.startsWith("file:///"))
+        return "file:/" + str.substring("file:///".length)
+    return str
+}
+
 private fun toURI(uri: String): URI {
     val u2 = decodeURL(uri)
     val u3 = encodeURL(u2).replace("%3A", ":")
@@ -29,7 +39,7 @@ class FileURI {
         val str = normalize.toString()
         _uri = if (isFolder && !str.endsWith('/')) toURI("$str/") else toURI(str)
         _scheme = _uri.scheme ?: "file"
-        _uriString = _uri.toString().toLowerCase()
+        _uriString = canonical(_uri)
         _isFolder = isFolder
     }
 
@@ -3,6 +3,7 @@ package com.tang.lsp
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.util.Key
 import com.intellij.psi.PsiFile
+import com.intellij.psi.tree.IElementType
 import org.eclipse.lsp4j.DidChangeTextDocumentParams
 import java.io.File
 import java.net.URI
@@ -14,6 +15,14 @@ interface IWorkspace {
     fun removeFile(uri: String)
     fun removeFileIfNeeded(uri: String)
     fun eachRoot(processor: (f: IFolder) -> Boolean)
+    /**
+     * @param shortUrl module path separated by '/', e.g. "a/b/c" for require("a.b.c")
+     */
+    fun findModuleFile(shortUrl: String, extNames: Array<String>): ILuaFile?
+    /**
+     * run [code] on one state of the workspace files like a request, the trees it reads are not changed in place meanwhile
+     */
+    fun <T> read(code: () -> T): T
     companion object {
         val KEY = Key.create<IWorkspace>("emmy.workspace")
 
@@ -43,8 +52,6 @@ interface IVirtualFile {
     fun matchUri(uri: URI): Boolean
 }
 
-data class Word(val hashCode: Int, val start: Int, val end: Int)
-
 interface ILuaFile : IVirtualFile {
     fun getText(): CharSequence
     val psi: PsiFile?
@@ -52,7 +59,8 @@ interface ILuaFile : IVirtualFile {
     fun getLine(offset: Int): Pair<Int, Int>
     fun didChange(params: DidChangeTextDocumentParams)
     fun getPosition(line:Int, char: Int): Int
-    fun processWords(processor: (w: Word) -> Boolean)
+    fun processWords(processor: (hashCode: Int, start: Int, end: Int) -> Boolean)
+    fun processTokens(processor: (type: IElementType, start: Int, end: Int) -> Boolean)
     fun getVersion(): Int
     fun lock(code: () -> Unit)
 }
\ No newline at end of file
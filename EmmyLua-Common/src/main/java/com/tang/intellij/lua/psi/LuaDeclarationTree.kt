@@ -17,6 +17,7 @@
 package com.tang.intellij.lua.psi
 
 import com.intellij.openapi.util.Key
+import com.intellij.psi.PsiComment
 import com.intellij.psi.PsiElement
 import com.intellij.psi.PsiFile
 import com.intellij.psi.PsiNamedElement
@@ -329,6 +330,10 @@ private abstract class LuaDeclarationTreeBase(val file: PsiFile) : LuaRecursiveV
     override fun visitClassMethodName(o: LuaClassMethodName) {
     }
 
+    // no declarations in comments, walking into a doc comment would parse it
+    override fun visitComment(comment: PsiComment) {
+    }
+
     override fun visitAssignStat(o: LuaAssignStat) {
         o.varExprList.exprList.forEach { expr ->
             if (expr is LuaNameExpr) {
@@ -22,6 +22,7 @@ import com.intellij.psi.PsiManager
 import com.intellij.psi.util.PsiTreeUtil
 import com.intellij.util.Processor
 import com.tang.intellij.lua.Constants
+import com.tang.intellij.lua.project.LuaSettings
 import com.tang.intellij.lua.search.SearchContext
 import com.tang.intellij.lua.stubs.index.LuaClassMemberIndex
 
@@ -162,6 +163,23 @@ fun resolve(indexExpr: LuaIndexExpr, idString: String, context: SearchContext):
     return ret
 }
 
+/**
+ * paths passed as string literals to require like functions in [file], e.g. "a.b.c"
+ */
+fun collectRequirePaths(file: LuaPsiFile): List<String> {
+    val list = mutableListOf<String>()
+    for (callExpr in PsiTreeUtil.findChildrenOfType(file, LuaCallExpr::class.java)) {
+        val expr = callExpr.expr
+        if (expr is LuaNameExpr && LuaSettings.isRequireLikeFunctionName(expr.name)) {
+            val string = callExpr.firstStringArg
+            if (string is LuaLiteralExpr) {
+                string.stringValue.let { if (it.isNotEmpty()) list.add(it) }
+            }
+        }
+    }
+    return list
+}
+
 /**
  * 找到 require 的文件路径
  * @param pathString 参数字符串 require "aa.bb.cc"
@@ -21,9 +21,10 @@ import com.tang.intellij.lua.comment.psi.LuaDocTagAlias
 import com.tang.intellij.lua.comment.psi.LuaDocTagClass
 import com.tang.intellij.lua.psi.LuaClassMember
 import com.tang.intellij.lua.psi.LuaPsiElement
+import com.tang.intellij.lua.stubs.index.ClassMemberKey
 
 object StubKeys {
-    val CLASS_MEMBER: IndexId<Int, LuaClassMember> = IndexId.create<Int, LuaClassMember>("lua.index.class.member")
+    val CLASS_MEMBER: IndexId<ClassMemberKey, LuaClassMember> = IndexId.create<ClassMemberKey, LuaClassMember>("lua.index.class.member")
     val SHORT_NAME: IndexId<String, LuaPsiElement> = IndexId.create<String, LuaPsiElement>("lua.index.short_name")
     val CLASS: IndexId<String, LuaDocTagClass> = IndexId.create<String, LuaDocTagClass>("lua.index.class")
     val SUPER_CLASS: IndexId<String, LuaDocTagClass> = IndexId.create<String, LuaDocTagClass>("lua.index.super_class")
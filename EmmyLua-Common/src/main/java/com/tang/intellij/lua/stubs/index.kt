@@ -2,32 +2,134 @@
 
 package com.tang.intellij.lua.stubs
 
+import com.intellij.lang.ASTNode
+import com.intellij.openapi.util.text.StringUtil
 import com.intellij.psi.PsiElement
 import com.intellij.psi.PsiRecursiveElementWalkingVisitor
+import com.intellij.psi.impl.source.tree.TreeUtil
 import com.intellij.psi.util.PsiTreeUtil
+import com.intellij.util.indexing.IndexId
 import com.tang.intellij.lua.Constants
 import com.tang.intellij.lua.comment.LuaCommentUtil
 import com.tang.intellij.lua.comment.psi.*
+import com.tang.intellij.lua.comment.psi.api.LuaComment
 import com.tang.intellij.lua.psi.*
 import com.tang.intellij.lua.search.SearchContext
+import com.tang.intellij.lua.stubs.index.ClassMemberKey
 import com.tang.intellij.lua.ty.ITyClass
 import com.tang.intellij.lua.ty.TyUnion
 import com.tang.intellij.lua.ty.getDocTableTypeName
 import com.tang.intellij.lua.ty.getTableTypeName
 
-fun index(file: LuaPsiFile) {
+/**
+ * @return the occurrences written to the indexes, null if the file has been indexed already
+ */
+fun index(file: LuaPsiFile): List<IndexOccurrence>? {
     if (file.indexed || file.indexing)
-        return
+        return null
     file.indexing = true
     file.indexed = true
     val sink = IndexSinkImpl(file)
     indexImpl(file, sink)
     file.indexing = false
+    sink.write()
+    file.postings = sink.postings
+    DeferredIndex.update(file, sink.deferred)
+    return sink.occurrences
+}
+
+/**
+ * Index [file] again after an edit, [previous] are the postings written for the tree before it,
+ * either [file] itself after a part was reparsed in place or a tree parsed before which [file] took the id of.
+ * Only the keys whose elements changed are written, each index reports them through [com.tang.intellij.lua.stubs.index.StubIndex.written].
+ * That saves writes after an in-place reparse only, a tree parsed anew has new elements under every key.
+ * The keys [DeferredIndex] resolved for the previous tree are resolved again before the next query.
+ * @return the occurrences of the new tree
+ */
+fun reindex(file: LuaPsiFile, previous: IndexPostings): List<IndexOccurrence> {
+    // postings of removed subtrees go first
+    val kept = removeDetached(file, previous)
+
+    file.indexing = true
+    file.indexed = true
+    val collector = IndexCollector()
+    indexImpl(file, collector)
+    file.indexing = false
+    val current = collector.postings
+
+    kept.diff(current).forEach { (index, changes) -> IndexSink.updateStubs(file.id, index, changes) }
+    file.postings = current
+    DeferredIndex.update(file, collector.deferred)
+    return collector.occurrences
+}
+
+/**
+ * remove the postings of [previous] whose elements are no longer in the tree of [file]
+ * @return the remaining postings
+ */
+fun removeDetached(file: LuaPsiFile, previous: IndexPostings): IndexPostings {
+    val kept = previous.filter { isInTree(it, file) }
+    previous.diff(kept).forEach { (index, changes) -> IndexSink.updateStubs(file.id, index, changes) }
+    return kept
+}
+
+private fun isInTree(element: PsiElement, file: LuaPsiFile): Boolean {
+    val root = file.node
+    var node: ASTNode? = element.node
+    while (node != null) {
+        if (node == root)
+            return true
+        node = node.treeParent
+    }
+    return false
+}
+
+/**
+ * write the [occurrences] recorded by [index] for the same text again without running the indexer,
+ * the [deferred] elements it left to [DeferredIndex] are resolved again like after [index]
+ * @return false if an occurrence or a deferred element can not be found in [file], nothing is written in that case
+ */
+@Suppress("UNCHECKED_CAST")
+fun restore(file: LuaPsiFile, occurrences: List<IndexOccurrence>, deferred: List<ElementLocation>): Boolean {
+    if (file.indexed || file.indexing)
+        return true
+    val elements = occurrences.map { it.find(file) ?: return false }
+    val deferredElements = deferred.map { it.find(file) as? LuaPsiElement ?: return false }
+    file.indexed = true
+    val sink = IndexSinkImpl(file)
+    occurrences.forEachIndexed { i, occurrence ->
+        sink.occurrence(occurrence.index as IndexId<Any, PsiElement>, occurrence.key, elements[i])
+    }
+    sink.write()
+    file.postings = sink.postings
+    DeferredIndex.update(file, deferredElements)
+    return true
 }
 
+/**
+ * The second pass of [index]: write the keys of an [element] the indexer deferred because they depend on inferred types.
+ * Run by [DeferredIndex] once the files loaded meanwhile are indexed, an element no longer in the tree of [file] is skipped.
+ */
+fun resolveDeferred(file: LuaPsiFile, element: LuaPsiElement, sink: IndexSink) {
+    if (!isInTree(element, file))
+        return
+    when (element) {
+        is LuaClassMethodDef -> resolve(element, sink)
+        is LuaIndexExpr -> resolve(element, sink)
+        is LuaTableField -> resolve(element, sink)
+    }
+}
+
+/**
+ * the first pass: only what can be read off the tree of [file] is written, the elements whose class is inferred
+ * are left to [resolveDeferred]
+ */
 private fun indexImpl(file: LuaPsiFile, sink: IndexSink) {
     file.accept(object : PsiRecursiveElementWalkingVisitor() {
         override fun visitElement(element: PsiElement) {
+            // doc comments without anything to index stay unparsed
+            if (element is LuaComment && TreeUtil.isCollapsedChameleon(element.node) && !hasIndexedTags(element.node.chars))
+                return
             super.visitElement(element)
             if (element is LuaPsiElement)
                 index(element, sink)
@@ -35,6 +137,16 @@ private fun indexImpl(file: LuaPsiFile, sink: IndexSink) {
     })
 }
 
+// the tags of the doc elements written to the indexes, see the doc lexer, and the braces of doc table types
+private val INDEXED_TAGS = arrayOf("@class", "@module", "@enum", "@interface", "@field", "@alias", "{")
+
+/**
+ * a text scan of a doc comment which is false only if its doc tree has no element the indexer writes
+ */
+private fun hasIndexedTags(text: CharSequence): Boolean {
+    return INDEXED_TAGS.any { StringUtil.contains(text, it) }
+}
+
 private fun index(psi: LuaPsiElement, sink: IndexSink) {
     when (psi) {
         is LuaDocTagClass -> index(psi, sink)
@@ -80,8 +192,7 @@ private fun index(field: LuaDocTagField, sink: IndexSink) {
         }
 
         if (className != null) {
-            sink.occurrence(StubKeys.CLASS_MEMBER, className.hashCode(), field)
-            sink.occurrence(StubKeys.CLASS_MEMBER, "$className*$name".hashCode(), field)
+            sink.occurrence(StubKeys.CLASS_MEMBER, ClassMemberKey(className, name), field)
             sink.occurrence(StubKeys.SHORT_NAME, name, field)
         }
     }
@@ -92,8 +203,7 @@ private fun index(field: LuaDocTableField, sink: IndexSink) {
     val p = field.parent as LuaDocTableDef
     val className = getDocTableTypeName(p)
 
-    sink.occurrence(StubKeys.CLASS_MEMBER, className.hashCode(), field)
-    sink.occurrence(StubKeys.CLASS_MEMBER, "$className*$name".hashCode(), field)
+    sink.occurrence(StubKeys.CLASS_MEMBER, ClassMemberKey(className, name), field)
     sink.occurrence(StubKeys.SHORT_NAME, name, field)
 }
 
@@ -104,6 +214,12 @@ private fun index(alias: LuaDocTagAlias, sink: IndexSink) {
 }
 
 private fun index(methodDef: LuaClassMethodDef, sink: IndexSink) {
+    val id = methodDef.nameIdentifier ?: return
+    sink.occurrence(StubKeys.SHORT_NAME, id.text, methodDef)
+    sink.defer(methodDef)
+}
+
+private fun resolve(methodDef: LuaClassMethodDef, sink: IndexSink) {
     val methodName = methodDef.classMethodName
     val id = methodDef.nameIdentifier ?: return
     val expr = methodName.expr
@@ -126,14 +242,16 @@ private fun index(methodDef: LuaClassMethodDef, sink: IndexSink) {
 
     val name = id.text
     classNameSet.forEach {className ->
-        sink.occurrence(StubKeys.CLASS_MEMBER, className.hashCode(), methodDef)
-        sink.occurrence(StubKeys.CLASS_MEMBER, "$className*$name".hashCode(), methodDef)
-        sink.occurrence(StubKeys.SHORT_NAME, className, methodDef)
+        sink.occurrence(StubKeys.CLASS_MEMBER, ClassMemberKey(className, name), methodDef)
     }
 }
 
 private fun index(indexExpr: LuaIndexExpr, sink: IndexSink) {
-    indexExpr.assignStat ?: return
+    if (indexExpr.assignStat != null && indexExpr.name != null)
+        sink.defer(indexExpr)
+}
+
+private fun resolve(indexExpr: LuaIndexExpr, sink: IndexSink) {
     val name = indexExpr.name ?: return
 
     val context = SearchContext.get(indexExpr.project)
@@ -145,8 +263,7 @@ private fun index(indexExpr: LuaIndexExpr, sink: IndexSink) {
     }
 
     classNameSet.forEach { className ->
-        sink.occurrence(StubKeys.CLASS_MEMBER, className.hashCode(), indexExpr)
-        sink.occurrence(StubKeys.CLASS_MEMBER, "$className*$name".hashCode(), indexExpr)
+        sink.occurrence(StubKeys.CLASS_MEMBER, ClassMemberKey(className, name), indexExpr)
         sink.occurrence(StubKeys.CONST, "$className*$name".hashCode(), indexExpr)
         sink.occurrence(StubKeys.SHORT_NAME, name, indexExpr)
     }
@@ -158,19 +275,34 @@ private fun index(tableExpr: LuaTableExpr, sink: IndexSink) {
 }
 
 private fun index(tableField: LuaTableField, sink: IndexSink) {
-    val name = tableField.name ?: return
-    val className = findTableExprTypeName(tableField) ?: return
+    tableField.name ?: return
+    val table = PsiTreeUtil.getParentOfType(tableField, LuaTableExpr::class.java) ?: return
+    // the fields of a table assigned to a typed variable are members of its class
+    if (findAssignStat(table) != null)
+        sink.defer(tableField)
+    else
+        index(tableField, getTableTypeName(table), sink)
+}
 
-    sink.occurrence(StubKeys.CLASS_MEMBER, className.hashCode(), tableField)
-    sink.occurrence(StubKeys.CLASS_MEMBER, "$className*$name".hashCode(), tableField)
+private fun resolve(tableField: LuaTableField, sink: IndexSink) {
+    val table = PsiTreeUtil.getParentOfType(tableField, LuaTableExpr::class.java) ?: return
+    index(tableField, findTableExprTypeName(table), sink)
+}
+
+private fun index(tableField: LuaTableField, className: String, sink: IndexSink) {
+    val name = tableField.name ?: return
+    sink.occurrence(StubKeys.CLASS_MEMBER, ClassMemberKey(className, name), tableField)
     sink.occurrence(StubKeys.SHORT_NAME, name, tableField)
     sink.occurrence(StubKeys.CONST, "$className*$name".hashCode(), tableField)
 }
 
-private fun findTableExprTypeName(field: LuaTableField): String? {
-    val table = PsiTreeUtil.getParentOfType(field, LuaTableExpr::class.java)
-    val p1 = table?.parent as? LuaExprList
-    val p2 = p1?.parent as? LuaAssignStat
+private fun findAssignStat(table: LuaTableExpr): LuaAssignStat? {
+    val p1 = table.parent as? LuaExprList
+    return p1?.parent as? LuaAssignStat
+}
+
+private fun findTableExprTypeName(table: LuaTableExpr): String {
+    val p2 = findAssignStat(table)
     var ty: String? = null
     if (p2 != null) {
         val type = p2.getExprAt(0)?.guessType(SearchContext.get(p2.project))
@@ -178,19 +310,17 @@ private fun findTableExprTypeName(field: LuaTableField): String? {
             ty = TyUnion.getPerfectClass(type)?.className
         }
     }
-    if (ty == null && table != null)
-        ty = getTableTypeName(table)
-    return ty
+    return ty ?: getTableTypeName(table)
 }
 
 private fun index(luaNameExpr: LuaNameExpr, sink: IndexSink) {
     luaNameExpr.assignStat ?: return
     val name = luaNameExpr.name
     //val module = if (psiFile is LuaPsiFile) psiFile.moduleName ?: Constants.WORD_G else Constants.WORD_G
-    val isGlobal = resolveLocal(luaNameExpr, SearchContext.get(luaNameExpr.project)) == null
+    // without a context `self` is not resolved through the indexes, the first pass stays syntactic
+    val isGlobal = resolveLocal(luaNameExpr) == null
     if (isGlobal) {
-        sink.occurrence(StubKeys.CLASS_MEMBER, Constants.WORD_G.hashCode(), luaNameExpr)
-        sink.occurrence(StubKeys.CLASS_MEMBER, "${Constants.WORD_G}*$name".hashCode(), luaNameExpr)
+        sink.occurrence(StubKeys.CLASS_MEMBER, ClassMemberKey(Constants.WORD_G, name), luaNameExpr)
         sink.occurrence(StubKeys.SHORT_NAME, name, luaNameExpr)
         sink.occurrence(StubKeys.CONST, "${Constants.WORD_G}*$name".hashCode(), luaNameExpr)
     }
@@ -208,7 +338,6 @@ private fun index(funcDef: LuaFuncDef, sink: IndexSink) {
     val params = funcDef.params
     val overloads = funcDef.overloads*/
 
-    sink.occurrence(StubKeys.CLASS_MEMBER, moduleName.hashCode(), funcDef)
-    sink.occurrence(StubKeys.CLASS_MEMBER, "$moduleName*${nameRef.text}".hashCode(), funcDef)
+    sink.occurrence(StubKeys.CLASS_MEMBER, ClassMemberKey(moduleName, nameRef.text), funcDef)
     sink.occurrence(StubKeys.SHORT_NAME, nameRef.text, funcDef)
 }
@@ -16,9 +16,58 @@
 
 package com.tang.intellij.lua.stubs.index
 
+import com.intellij.util.Processor
 import com.tang.intellij.lua.psi.LuaPsiElement
 import com.tang.intellij.lua.stubs.StubKeys
+import java.util.concurrent.ConcurrentHashMap
 
+/**
+ * The named elements by name, for workspace symbols.
+ *
+ * The names are kept apart with a signature of their chars, a pattern is matched against the names that have
+ * all of its chars without visiting the postings or building the psi of lazy ones.
+ */
 object LuaShortNameIndex : StubIndex<String, LuaPsiElement>() {
     override fun getKey() = StubKeys.SHORT_NAME
+
+    // name -> signature, the names with postings
+    private val names = ConcurrentHashMap<String, Long>()
+
+    override fun written(key: String) {
+        super.written(key)
+        // the entry is read again inside, the last write to a key leaves its current state
+        names.compute(key) { _, signature -> if (entry(key) == null) null else signature ?: signature(key) }
+    }
+
+    /**
+     * run [processor] on the names that may match [pattern] until it returns false:
+     * every char of the pattern but the wildcards ` ` and `*` occurs in the name, in any case.
+     * A [com.intellij.psi.codeStyle.MinusculeMatcher] only matches those names.
+     */
+    fun processNames(pattern: String, processor: Processor<String>): Boolean {
+        beforeRead(null)
+        val required = signature(pattern.filter { it != ' ' && it != '*' })
+        for ((name, signature) in names) {
+            if (signature and required == required && !processor.process(name))
+                return false
+        }
+        return true
+    }
+
+    /**
+     * a bit for each letter, digit and `_` in [name] in lower case, and one for any other char
+     */
+    private fun signature(name: CharSequence): Long {
+        var bits = 0L
+        for (c in name) {
+            val lower = Character.toLowerCase(c)
+            bits = bits or when (lower) {
+                in 'a'..'z' -> 1L shl (lower - 'a')
+                in '0'..'9' -> 1L shl (26 + (lower - '0'))
+                '_' -> 1L shl 36
+                else -> 1L shl 63
+            }
+        }
+        return bits
+    }
 }
\ No newline at end of file
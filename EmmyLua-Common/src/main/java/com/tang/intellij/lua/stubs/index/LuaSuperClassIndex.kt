@@ -3,7 +3,6 @@ package com.tang.intellij.lua.stubs.index
 import com.intellij.openapi.project.Project
 import com.intellij.psi.search.GlobalSearchScope
 import com.intellij.util.Processor
-import com.intellij.util.containers.ContainerUtil
 import com.tang.intellij.lua.comment.psi.LuaDocTagClass
 import com.tang.intellij.lua.stubs.StubKeys
 
@@ -15,8 +14,7 @@ class LuaSuperClassIndex : StubIndex<String, LuaDocTagClass>() {
         val instance = LuaSuperClassIndex()
 
         fun process(s: String, project: Project, scope: GlobalSearchScope, processor: Processor<LuaDocTagClass>): Boolean {
-            val c = instance.get(s, project, scope)
-            return ContainerUtil.process(c, processor)
+            return instance.process(s, project, scope, processor)
         }
     }
 }
\ No newline at end of file
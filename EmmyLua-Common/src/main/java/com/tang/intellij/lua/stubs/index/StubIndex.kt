@@ -4,71 +4,263 @@ package com.tang.intellij.lua.stubs.index
 
 import com.intellij.openapi.project.Project
 import com.intellij.psi.PsiElement
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.search.EverythingGlobalScope
 import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.psi.search.ProjectAndLibrariesScope
 import com.intellij.util.Processor
-import com.intellij.util.containers.ContainerUtil
 import com.intellij.util.indexing.IndexId
 import com.tang.intellij.lua.psi.LuaPsiFile
+import com.tang.intellij.lua.stubs.DeferredIndex
+import java.util.concurrent.ConcurrentHashMap
 
+/**
+ * postings restored from the stub cache whose psi has not been built yet
+ */
+interface LazyStubSource {
+    /**
+     * build the psi and replace the lazy postings with real ones
+     */
+    fun ensureIndexed()
+}
+
+/**
+ * Postings of the files by key.
+ *
+ * Readers do not lock: the keys are in a concurrent map, and each key has a concurrent map of file id to [StubFile].
+ * A [StubFile] is never changed, a write replaces it with a new one (copy on write).
+ * Writers to different keys run in parallel, the writes to one key are serialized by the [ConcurrentHashMap.compute]
+ * of its entry, which also removes an entry whose last file is gone without losing a concurrent write to it.
+ * The keys of each file are kept too, removing a file only visits the entries it has postings in.
+ * An index may keep its entries in another structure by overriding [entry], [entries] and [computeEntry].
+ *
+ * A query in an everything-scope takes every posting, other scopes look at the file of the postings
+ * and do not build the lazy psi of the files outside of them.
+ *
+ * A query first tells [DeferredIndex] which key it reads, and each write tells it which key changed.
+ */
 abstract class StubIndex<K, Psi : PsiElement> {
-    inner class StubFile {
-        val elements = mutableListOf<Psi>()
-    }
+    inner class StubFile(val elements: List<Psi>, val source: LazyStubSource?)
+
     inner class StubEntry(val key: K) {
-        val files = mutableMapOf<Int, StubFile>()
+        // most keys are in one file
+        val files = ConcurrentHashMap<Int, StubFile>(2)
+
+        // the number of files with lazy postings, changed with the files
+        @Volatile
+        var lazyCount = 0
+
+        val lazy: Boolean
+            get() = lazyCount > 0
     }
 
     abstract fun getKey(): IndexId<K, Psi>
 
     private var lock = false
 
-    private val indexMap = mutableMapOf<K, StubEntry>()
+    private val indexMap = ConcurrentHashMap<K, StubEntry>()
+
+    // file id -> the keys the file has postings under
+    private val fileKeys = ConcurrentHashMap<Int, MutableSet<K>>()
+
+    /**
+     * the entry of [key], null if no file has postings under it
+     */
+    protected open fun entry(key: K): StubEntry? = indexMap[key]
 
-    @Synchronized
+    protected open fun entries(): Iterable<StubEntry> = indexMap.values
+
+    /**
+     * replace the entry of [key] with the one [code] returns, null removes it; atomic for each key
+     */
+    protected open fun computeEntry(key: K, code: (stubEntry: StubEntry?) -> StubEntry?) {
+        indexMap.compute(key) { _, stubEntry -> code(stubEntry) }
+    }
+
+    /**
+     * a copy of the elements under [key], [process] reads them in place
+     */
     fun get(key: K, project: Project, scope: GlobalSearchScope): MutableList<Psi> {
         val list = mutableListOf<Psi>()
-        if (lock)
-            return list
-        val stubEntry = indexMap[key]
-        stubEntry?.files?.forEach { _, u -> list.addAll(u.elements) }
-
+        process(key, project, scope, Processor { list.add(it) })
         return list
     }
 
-    @Synchronized
+    /**
+     * run [processor] on the elements under [key] until it returns false
+     * @return false if [processor] stopped
+     */
+    fun process(key: K, project: Project, scope: GlobalSearchScope, processor: Processor<in Psi>): Boolean {
+        beforeRead(key)
+        var stubEntry = entry(key)
+        // lazy postings are replaced by the ones of the built psi, read again
+        if (indexLazy(stubEntry, scope))
+            stubEntry = entry(key)
+        return process(stubEntry, scope, processor)
+    }
+
+    /**
+     * record [key] for the resolution running on this thread, or let [DeferredIndex] resolve the pending keys; null for all keys
+     */
+    protected fun beforeRead(key: Any?) {
+        DeferredIndex.beforeRead(this, key)
+    }
+
+    /**
+     * the postings under [key] changed
+     */
+    protected open fun written(key: K) {
+        DeferredIndex.written(this, key as Any)
+    }
+
+    /**
+     * build the psi of the lazy postings in [stubEntry] that are in [scope]
+     * @return true if it had any, the entry has to be looked up again then
+     */
+    protected fun indexLazy(stubEntry: StubEntry?, scope: GlobalSearchScope): Boolean {
+        if (stubEntry == null || !stubEntry.lazy || lock)
+            return false
+        var sources: MutableList<LazyStubSource>? = null
+        for (stubFile in stubEntry.files.values) {
+            val source = stubFile.source ?: continue
+            if (isInScope(stubFile, scope))
+                (sources ?: mutableListOf<LazyStubSource>().also { sources = it }).add(source)
+        }
+        ensureIndexed(sources ?: return false)
+        return true
+    }
+
+    /**
+     * run [processor] on the elements of [stubEntry] in [scope] without copying them to a list
+     */
+    protected fun process(stubEntry: StubEntry?, scope: GlobalSearchScope, processor: Processor<in Psi>): Boolean {
+        if (stubEntry == null || lock)
+            return true
+        val everything = isEverything(scope)
+        for (stubFile in stubEntry.files.values) {
+            if (!everything && !isInScope(stubFile, scope))
+                continue
+            val elements = stubFile.elements
+            for (i in elements.indices) {
+                if (!processor.process(elements[i]))
+                    return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * the keys with postings in [scope]
+     */
     fun processKeys(project: Project, scope: GlobalSearchScope, processor: Processor<K>): Boolean {
         if (lock)
             return true
-        return ContainerUtil.process(indexMap.keys, processor)
+        beforeRead(null)
+        val everything = isEverything(scope)
+        for (stubEntry in entries()) {
+            if (!everything && stubEntry.files.values.none { isInScope(it, scope) })
+                continue
+            if (!processor.process(stubEntry.key))
+                return false
+        }
+        return true
     }
 
-    @Synchronized
-    fun processValues(project: Project, scope: GlobalSearchScope, processor: Processor<Psi>) {
-        for (stubEntry in indexMap.values) {
-            for (stubFile in stubEntry.files.values) {
-                if (!ContainerUtil.process(stubFile.elements, processor))
-                    return
-            }
+    fun processValues(project: Project, scope: GlobalSearchScope, processor: Processor<in Psi>): Boolean {
+        if (lock)
+            return true
+        beforeRead(null)
+        ensureIndexed(lazySources(scope))
+        for (stubEntry in entries()) {
+            if (!process(stubEntry, scope, processor))
+                return false
         }
+        return true
     }
 
-    @Synchronized
+    /**
+     * register [key] for a file whose psi will be built by [source] on first query
+     */
     @Suppress("UNCHECKED_CAST")
-    fun <Psi1 : PsiElement, K1> occurrence(file: LuaPsiFile, key: K1, value: Psi1) {
-        val k = key as K
-        val stubEntry = indexMap.getOrPut(k) { StubEntry(k) }
-        val stubFile = stubEntry.files.getOrPut(file.id) { StubFile() }
-        stubFile.elements.add(value as Psi)
+    fun <K1> lazyOccurrence(fileId: Int, key: K1, source: LazyStubSource) {
+        update(key as K, fileId) { files ->
+            files.compute(fileId) { _, stubFile -> StubFile(stubFile?.elements ?: emptyList(), source) }
+        }
     }
 
-    @Synchronized
     fun removeStubs(file: LuaPsiFile) {
-        val iterator = indexMap.iterator()
-        while (iterator.hasNext()) {
-            val entry = iterator.next()
-            entry.value.files.remove(file.id)
-            if (entry.value.files.isEmpty())
-                iterator.remove()
+        removeStubs(file.id)
+    }
+
+    fun removeStubs(fileId: Int) {
+        val keys = fileKeys.remove(fileId) ?: return
+        for (key in keys) {
+            update(key, fileId) { files -> files.remove(fileId) }
+        }
+    }
+
+    /**
+     * replace the elements of [fileId] under the keys of [changes] only, the other keys are not visited
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <K1> updateStubs(fileId: Int, changes: Map<K1, List<PsiElement>>) {
+        changes.forEach { (key, elements) ->
+            update(key as K, fileId) { files ->
+                if (elements.isEmpty())
+                    files.remove(fileId)
+                else
+                    files[fileId] = StubFile(elements.map { it as Psi }, null)
+            }
+        }
+    }
+
+    /**
+     * change the postings of [fileId] in the entry of [key], atomically with creating the entry and removing it once it has no files
+     */
+    private fun update(key: K, fileId: Int, code: (files: ConcurrentHashMap<Int, StubFile>) -> Unit) {
+        computeEntry(key) { stubEntry ->
+            val entry = stubEntry ?: StubEntry(key)
+            val wasLazy = entry.files[fileId]?.source != null
+            code(entry.files)
+            val isLazy = entry.files[fileId]?.source != null
+            if (wasLazy != isLazy)
+                entry.lazyCount += if (isLazy) 1 else -1
+            if (entry.files.containsKey(fileId))
+                fileKeys.computeIfAbsent(fileId) { ConcurrentHashMap.newKeySet() }.add(key)
+            else
+                fileKeys[fileId]?.remove(key)
+            if (entry.files.isEmpty()) null else entry
         }
+        written(key)
+    }
+
+    private fun lazySources(scope: GlobalSearchScope): List<LazyStubSource> {
+        val set = mutableSetOf<LazyStubSource>()
+        for (stubEntry in entries()) {
+            if (!stubEntry.lazy)
+                continue
+            stubEntry.files.values.forEach { stubFile ->
+                val source = stubFile.source
+                if (source != null && isInScope(stubFile, scope))
+                    set.add(source)
+            }
+        }
+        return set.toList()
+    }
+
+    private fun isEverything(scope: GlobalSearchScope): Boolean {
+        return scope is EverythingGlobalScope || scope is ProjectAndLibrariesScope
+    }
+
+    private fun isInScope(stubFile: StubFile, scope: GlobalSearchScope): Boolean {
+        if (isEverything(scope))
+            return true
+        val file = stubFile.source as? VirtualFile ?: stubFile.elements.firstOrNull()?.containingFile?.virtualFile
+        return file != null && scope.contains(file)
+    }
+
+    // must not run inside an update, building the psi writes to the other indexes
+    private fun ensureIndexed(sources: List<LazyStubSource>) {
+        sources.forEach { it.ensureIndexed() }
     }
-}
\ No newline at end of file
+}
@@ -16,6 +16,9 @@ interface LuaLanguageClient : LanguageClient {
     @JsonNotification("emmy/progressReport")
     fun progressReport(report: ProgressReport)
 
+    @JsonNotification("emmy/indexingComplete")
+    fun indexingComplete(report: IndexingReport)
+
     @JsonNotification("emmy/reportAPI")
     fun reportAPI(params: LuaReportApiParams)
 }
\ No newline at end of file
@@ -16,6 +16,7 @@ import org.eclipse.lsp4j.services.LanguageClient
 import org.eclipse.lsp4j.services.LanguageClientAware
 import org.eclipse.lsp4j.services.LanguageServer
 import org.eclipse.lsp4j.services.WorkspaceService
+import java.io.File
 import java.util.*
 import java.util.concurrent.CompletableFuture
 import kotlin.collections.ArrayList
@@ -68,6 +69,12 @@ class LuaLanguageServer : LanguageServer, LanguageClientAware {
             val clientType = json["client"] as? JsonPrimitive
             if (clientType != null)
                 VSCodeSettings.clientType = clientType.asString
+            val indexWorkers = json["indexWorkers"] as? JsonPrimitive
+            if (indexWorkers != null && indexWorkers.isNumber && indexWorkers.asInt > 0)
+                VSCodeSettings.indexWorkers = indexWorkers.asInt
+            val cacheDir = json["cacheDir"] as? JsonPrimitive
+            if (cacheDir != null && cacheDir.isString)
+                VSCodeSettings.cacheDir = if (cacheDir.asString.isEmpty()) null else File(cacheDir.asString)
             // lua config files
             val configFileArray = json["configFiles"] as? JsonArray
             if (configFileArray != null) {
@@ -102,7 +109,7 @@ class LuaLanguageServer : LanguageServer, LanguageClientAware {
         capabilities.workspace.workspaceFolders.changeNotifications = Either.forLeft(WORKSPACE_FOLDERS_CAPABILITY_ID)
         capabilities.foldingRangeProvider = Either.forLeft(true)
 
-        capabilities.textDocumentSync = Either.forLeft(TextDocumentSyncKind.Full)
+        capabilities.textDocumentSync = Either.forLeft(TextDocumentSyncKind.Incremental)
 
         val inlayHintOptions = InlayHintRegistrationOptions()
         inlayHintOptions.resolveProvider = true
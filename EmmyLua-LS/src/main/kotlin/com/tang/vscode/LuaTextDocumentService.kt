@@ -486,9 +486,10 @@ class LuaTextDocumentService(private val workspace: LuaWorkspaceService) : TextD
         val file = workspace.findFile(uri)
         if (file == null) {
             val u = URI(uri)
-            workspace.addFile(File(u.path), params.textDocument.text, true)
+            workspace.addFile(File(u.path), params.textDocument.text, true)?.let { workspace.openFile(it) }
         } else if (file is LuaFile) {
             file.text = params.textDocument.text
+            workspace.openFile(file)
         }
     }
 
@@ -567,7 +568,7 @@ class LuaTextDocumentService(private val workspace: LuaWorkspaceService) : TextD
     }
 
     override fun didClose(params: DidCloseTextDocumentParams) {
-        workspace.removeFileIfNeeded(params.textDocument.uri)
+        workspace.closeFile(params.textDocument.uri)
     }
 
     // @deprecated please use emmyluaCodeStyle plugin
@@ -914,22 +915,23 @@ class LuaTextDocumentService(private val workspace: LuaWorkspaceService) : TextD
 
             if (file is ILuaFile) {
                 file.lock {
+                    file.processTokens { type, start, _ ->
+                        if (type == LuaTypes.REGION) {
+                            regionStartLine = file.getLine(start).first
+                        } else if (type == LuaTypes.ENDREGION) {
+                            if (regionStartLine != -1) {
+                                val endLine = file.getLine(start).first
+                                val foldRange = FoldingRange(regionStartLine, endLine)
+                                foldRange.kind = "region"
+                                foldingRanges.add(foldRange)
+                                regionStartLine = -1
+                            }
+                        }
+                        true
+                    }
                     file.psi?.acceptChildren(object : LuaRecursiveVisitor() {
+                        // comments hold no folded code, walking into a doc comment would parse it
                         override fun visitComment(comment: PsiComment?) {
-                            comment?.let {
-                                // 在require 语句中不支持--region
-                                if (it.tokenType.toString() == "REGION") {
-                                    regionStartLine = file.getLine(it.textRange.startOffset).first
-                                } else if (it.tokenType.toString() == "ENDREGION") {
-                                    if (regionStartLine != -1) {
-                                        val endLine = file.getLine(it.textRange.startOffset).first
-                                        val foldRange = FoldingRange(regionStartLine, endLine)
-                                        foldRange.kind = "region"
-                                        foldingRanges.add(foldRange)
-                                        regionStartLine = -1
-                                    }
-                                }
-                            }
                         }
 
                         override fun visitIfStat(o: LuaIfStat) {
@@ -2,22 +2,29 @@ package com.tang.vscode
 
 import com.google.gson.JsonObject
 import com.intellij.codeInsight.completion.impl.CamelHumpMatcher
-import com.intellij.openapi.fileEditor.impl.LoadTextUtil
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.project.ProjectCoreUtil
 import com.intellij.openapi.util.UserDataHolderBase
+import com.intellij.openapi.util.text.StringUtil
 import com.intellij.psi.PsiFile
 import com.intellij.psi.PsiNamedElement
+import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.psi.search.SearchScope
 import com.intellij.util.Processor
 import com.tang.intellij.lua.IVSCodeSettings
 import com.tang.intellij.lua.configuration.IConfigurationManager
 import com.tang.intellij.lua.fs.FileManager
 import com.tang.intellij.lua.fs.IFileManager
+import com.tang.intellij.lua.psi.LuaPsiFile
+import com.tang.intellij.lua.psi.collectRequirePaths
+import com.tang.intellij.lua.stubs.DeferredIndex
 import com.tang.intellij.lua.stubs.index.LuaShortNameIndex
 import com.tang.lsp.*
 import com.tang.vscode.api.impl.Folder
 import com.tang.vscode.api.impl.LuaFile
+import com.tang.vscode.api.impl.LuaFileRegistry
+import com.tang.vscode.api.impl.WorkspaceSnapshots
 import com.tang.vscode.configuration.ConfigurationManager
 import com.tang.vscode.diagnostics.DiagnosticsService
 import com.tang.vscode.utils.computeAsync
@@ -29,29 +36,76 @@ import org.eclipse.lsp4j.jsonrpc.services.JsonRequest
 import org.eclipse.lsp4j.services.WorkspaceService
 import java.io.File
 import java.net.URI
+import java.util.PriorityQueue
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * tangzx
  * Created by Client on 2018/3/20.
  */
 class LuaWorkspaceService : WorkspaceService, IWorkspace {
-    private val rootList = mutableListOf<IFolder>()
-    private val schemeMap = mutableMapOf<String, IFolder>()
+    private val rootList = CopyOnWriteArrayList<IFolder>()
+    private val schemeMap = ConcurrentHashMap<String, IFolder>()
+    /**
+     * guards changes of the folder tree, which happen on the lsp thread and on the loading thread,
+     * lookups run without it
+     */
+    private val treeLock = Any()
     private val configurationManager = ConfigurationManager()
     private var client: LuaLanguageClient? = null
     private var configVersion = 0
+    /**
+     * incremented when files enter or leave the workspace
+     */
+    @Volatile
+    private var fileSetVersion = 0
+    private var stubCache: WorkspaceStubCache? = null
+    private val loadExecutor = Executors.newSingleThreadExecutor { r ->
+        val thread = Thread(r, "emmy-workspace")
+        thread.isDaemon = true
+        thread
+    }
+    private val pendingLoadCount = AtomicInteger()
+    private val pendingChangeCount = AtomicInteger()
+    private val watchedFiles = WatchedFilesQueue(WATCHED_FILES_WINDOW, WATCHED_FILES_MAX_DELAY) { batch ->
+        loadExecutor.execute { applyFileChanges(batch) }
+    }
+    @Volatile
+    private var activeLoader: WorkspaceLoader? = null
+    /**
+     * files of the running load by file name, to find the targets of require calls before they are loaded
+     */
+    @Volatile
+    private var loadingFiles = mapOf<String, List<FileURI>>()
+    /**
+     * files opened in the client, the files they require are loaded first
+     */
+    private val openFiles = ConcurrentHashMap.newKeySet<ILuaFile>()
+    // every lua file of the folder tree, including opened files outside of the roots
+    private val fileRegistry = LuaFileRegistry()
 
     inner class WProject : UserDataHolderBase(), Project {
         override fun process(processor: Processor<PsiFile>) {
-            for (ws in rootList) {
-                val continueRun = ws.walkFiles {
-                    val psi = it.psi
-                    if (psi != null)
-                        return@walkFiles processor.process(psi)
-                    true
-                }
-                if (!continueRun) break
+            fileRegistry.process {
+                val psi = it.psi
+                if (psi != null)
+                    return@process processor.process(psi)
+                true
+            }
+        }
+
+        override fun process(scope: SearchScope, processor: Processor<PsiFile>) {
+            fileRegistry.process {
+                if (it is VirtualFile && !scope.contains(it))
+                    return@process true
+                val psi = it.psi
+                if (psi != null)
+                    return@process processor.process(psi)
+                true
             }
         }
     }
@@ -64,23 +118,76 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
     init {
         project.putUserData(IWorkspace.KEY, this)
         fileManager.addProvider(fileScopeProvider)
+        // the second indexing pass queues behind a running load instead of stalling the requests
+        DeferredIndex.executor = loadExecutor
     }
 
     override fun didChangeWatchedFiles(params: DidChangeWatchedFilesParams) {
-        for (change in params.changes) {
-            when (change.type) {
-                FileChangeType.Created -> addFile(change.uri)
-                FileChangeType.Deleted -> removeFile(change.uri)
-                FileChangeType.Changed -> {
-                    if (change.uri.endsWith("globalStorage")) {
-                        return
+        val changes = params.changes.filter {
+            !(it.type == FileChangeType.Changed && it.uri.endsWith("globalStorage"))
+        }
+        watchedFiles.submit(changes)
+    }
+
+    /**
+     * Apply a batch of [WatchedFilesQueue] on the loading thread, so it never interleaves with a workspace load.
+     * Created and changed files are read and parsed in parallel, then the client refreshes its diagnostics once
+     * if a file was added or removed.
+     * Files opened in the client are left to it, they are read from disk again once closed, see [closeFile].
+     */
+    private fun applyFileChanges(batch: Map<String, FileChangeType>) {
+        val files = LinkedHashSet<FileURI>()
+        // files whose current content is replaced by the one on disk
+        val changedFiles = HashSet<FileURI>()
+        var changed = false
+        for ((uri, type) in batch) {
+            if (type == FileChangeType.Deleted) {
+                // a deleted folder may be reported with a trailing slash
+                if (removeClosedFiles(uri.trimEnd('/')))
+                    changed = true
+                continue
+            }
+            val file = File(URI(uri).path)
+            if (file.isDirectory) {
+                val list = mutableListOf<FileURI>()
+                fileManager.collectFiles(file, list)
+                list.filterTo(files) { findLuaFile(it) == null }
+                continue
+            }
+            val fileURI = FileURI(file.toURI(), false)
+            if (isOpen(findLuaFile(fileURI)))
+                continue
+            if (!fileManager.isInclude(fileURI)) {
+                if (type == FileChangeType.Changed && findFile(fileURI) != null) {
+                    removeFile(uri)
+                    changed = true
+                }
+            } else if (type == FileChangeType.Changed) {
+                files.add(fileURI)
+                changedFiles.add(fileURI)
+            } else if (findLuaFile(fileURI) == null) {
+                files.add(fileURI)
+            }
+        }
+        WorkspaceLoader(VSCodeSettings.indexWorkers).load(files.toList()) { uri, file, _ ->
+            synchronized(treeLock) {
+                // opened while it was read
+                if (isOpen(findLuaFile(uri)))
+                    return@load
+                if (uri in changedFiles) {
+                    findLuaFile(uri)?.let {
+                        it.parent.removeFile(it)
+                        changed = true
                     }
-                    removeFile(change.uri)
-                    addFile(change.uri)
                 }
-                else -> {}
+                if (file != null && mergeFile(file))
+                    changed = true
             }
         }
+        if (changed) {
+            ++fileSetVersion
+            refreshWorkspace()
+        }
     }
 
     override fun didChangeConfiguration(params: DidChangeConfigurationParams) {
@@ -89,7 +196,6 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
         ++configVersion
         if (ret.associationChanged) {
             loadWorkspace()
-            refreshWorkspace()
         }
 
     }
@@ -116,10 +222,9 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
 
     @JsonRequest("emmy/updateConfig")
     fun updateConfig(params: UpdateConfigParams): CompletableFuture<Void> {
-        ++configVersion
+        // only the set of workspace files depends on the config files, see loadWorkspace
         configurationManager.updateConfiguration(params)
         loadWorkspace()
-        refreshWorkspace()
         return CompletableFuture()
     }
 
@@ -128,15 +233,44 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
             return CompletableFuture.completedFuture(Either.forRight(mutableListOf()))
         val matcher = CamelHumpMatcher(params.query, false)
         return computeAsync { cancel ->
-            val list = mutableListOf<SymbolInformation>()
-            LuaShortNameIndex.processValues(project, GlobalSearchScope.projectScope(project), Processor {
+            // the names are ranked first, only the elements of the best ones are looked up
+            val best = PriorityQueue<Pair<Int, String>>(compareBy { it.first })
+            LuaShortNameIndex.processNames(params.query, Processor { name ->
                 cancel.checkCanceled()
-                val name = it.name
-                if (it is PsiNamedElement && name != null && matcher.prefixMatches(name)) {
-                    list.add(it.getSymbol())
+                if (matcher.prefixMatches(name)) {
+                    best.add(Pair(matcher.matchingDegree(name), name))
+                    if (best.size > MAX_WORKSPACE_SYMBOLS)
+                        best.poll()
                 }
                 true
             })
+            val names = best.sortedWith(compareByDescending<Pair<Int, String>> { it.first }.thenBy { it.second })
+            val scope = GlobalSearchScope.projectScope(project)
+            val token = params.partialResultToken
+            val list = mutableListOf<SymbolInformation>()
+            var count = 0
+            for ((_, name) in names) {
+                cancel.checkCanceled()
+                LuaShortNameIndex.process(name, project, scope, Processor {
+                    val elementName = it.name
+                    if (it is PsiNamedElement && elementName != null && matcher.prefixMatches(elementName)) {
+                        list.add(it.getSymbol())
+                        count++
+                    }
+                    count < MAX_WORKSPACE_SYMBOLS
+                })
+                // with a token the symbols stream back in batches and the response is empty
+                if (token != null && (list.size >= WORKSPACE_SYMBOLS_BATCH || count >= MAX_WORKSPACE_SYMBOLS)) {
+                    client?.notifyProgress(ProgressParams(token, Either.forRight(list.toList())))
+                    list.clear()
+                }
+                if (count >= MAX_WORKSPACE_SYMBOLS)
+                    break
+            }
+            if (token != null && list.isNotEmpty()) {
+                client?.notifyProgress(ProgressParams(token, Either.forRight(list.toList())))
+                list.clear()
+            }
             Either.forLeft(list)
         }
     }
@@ -150,7 +284,6 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
         }
         if (params.event.added.isNotEmpty()) {
             loadWorkspace()
-            refreshWorkspace()
         }
     }
 
@@ -169,16 +302,17 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
             }
         }
 
+        // the files restored from the stub cache are not parsed for this, only once they are opened or otherwise needed
         val files = mutableListOf<LuaFile>()
-        project.process {
-            val file = it.virtualFile
-            if (file is LuaFile) {
-                files.add(file)
+        fileRegistry.process {
+            if (it is LuaFile && (it.isParsed || it in openFiles)) {
+                files.add(it)
             }
             true
         }
 
         val workspaceConfigVersion = configVersion
+        val workspaceFileSetVersion = fileSetVersion
 
         return computeAsync { checker ->
             for (luaFile in files) {
@@ -210,8 +344,8 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
                 }
             }
 
-            // 如果配置版本发生变更则中断无限循环
-            while (workspaceConfigVersion == configVersion) {
+            // 如果配置版本或工作区文件发生变更则中断无限循环
+            while (workspaceConfigVersion == configVersion && workspaceFileSetVersion == fileSetVersion) {
                 Thread.sleep(1000)
             }
 
@@ -223,7 +357,7 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
     private fun getSchemeFolder(path: FileURI, autoCreate: Boolean): IFolder? {
         var folder: IFolder? = schemeMap[path.scheme]
         if (folder == null && autoCreate) {
-            folder = Folder(FileURI("${path.scheme}:/", true))
+            folder = Folder(FileURI("${path.scheme}:/", true), null, fileRegistry)
             schemeMap[path.scheme] = folder
         }
         return folder
@@ -247,25 +381,30 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
     }
 
     private fun addRoot(fileURI: FileURI): IFolder {
-        val exist = rootList.find { it.uri == fileURI }
-        if (exist != null) return exist
-
-        val pair = findOrCreate(fileURI, true)
-        val folder = pair.first!!
-        if (pair.second)
-            rootList.add(folder)
-        return folder
+        synchronized(treeLock) {
+            val exist = rootList.find { it.uri == fileURI }
+            if (exist != null) return exist
+
+            val pair = findOrCreate(fileURI, true)
+            val folder = pair.first!!
+            // the folder may already exist without being a root, e.g. when a file was opened before loading
+            if (pair.second || rootList.none { it.uri.contains(fileURI) })
+                rootList.add(folder)
+            return folder
+        }
     }
 
     private fun removeRoot(uri: String) {
         val path = FileURI(uri, true)
-        rootList.removeIf { folder ->
-            if (folder.uri == path) {
-                fileScopeProvider.removeRoot(path)
-                removeFolder(folder)
-                return@removeIf true
+        synchronized(treeLock) {
+            rootList.removeIf { folder ->
+                if (folder.uri == path) {
+                    fileScopeProvider.removeRoot(path)
+                    removeFolder(folder)
+                    return@removeIf true
+                }
+                false
             }
-            false
         }
     }
 
@@ -281,35 +420,152 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
         fileScopeProvider.addRoot(FileURI(uri, true))
     }
 
-    private fun cleanWorkspace() {
+    /**
+     * remove the files that are no longer part of the workspace, files opened in the client are kept
+     * @param included the files found for the collected uris, by [findLuaFile] so either uri form matches
+     * @return number of removed files
+     */
+    private fun removeFilesNotIn(included: Set<ILuaFile>): Int {
         val removeList = mutableListOf<ILuaFile>()
-        project.process { psiFile ->
-            val file = psiFile.virtualFile
-            if (file is ILuaFile) {
-                if (fileManager.isExclude(file.uri)) {
+        // walk the files directly, lazily restored files must not be parsed here
+        eachRoot { root ->
+            root.walkFiles { file ->
+                if (file !in included && file !in openFiles) {
                     removeList.add(file)
                 }
+                true
+            }
+        }
+        synchronized(treeLock) {
+            removeList.forEach {
+                it.parent.removeFile(it)
             }
-            true
         }
-        removeList.forEach {
-            it.parent.removeFile(it)
+        return removeList.size
+    }
+
+    /**
+     * Loads the workspace on a background thread, requests are answered from what is indexed so far.
+     * Files opened meanwhile are indexed right away and the files they require are moved ahead, see [prioritizeRequires].
+     *
+     * A reload only indexes the files entering the workspace and unindexes the ones leaving it,
+     * the other files keep their index and diagnostic result ids.
+     * Once no load is pending the client gets emmy/indexingComplete,
+     * and is asked to refresh its diagnostics if the set of files changed.
+     */
+    fun loadWorkspace() {
+        pendingLoadCount.incrementAndGet()
+        loadExecutor.execute {
+            val start = System.currentTimeMillis()
+            val changed = loadWorkspace(object : IProgressMonitor {
+                override fun done() {
+                    if (VSCodeSettings.isVSCode)
+                        client?.progressReport(ProgressReport("Finished!", 1f))
+                }
+
+                override fun setProgress(text: String, percent: Float) {
+                    if (VSCodeSettings.isVSCode)
+                        client?.progressReport(ProgressReport(text, percent))
+                }
+            })
+            if (changed > 0) {
+                ++fileSetVersion
+                pendingChangeCount.addAndGet(changed)
+            }
+            if (pendingLoadCount.decrementAndGet() == 0) {
+                client?.indexingComplete(IndexingReport(fileRegistry.size, System.currentTimeMillis() - start))
+                // unchanged files answer the refresh with their previous result id
+                if (pendingChangeCount.getAndSet(0) > 0)
+                    refreshWorkspace()
+            }
         }
     }
 
-    fun loadWorkspace() {
-        cleanWorkspace()
-        loadWorkspace(object : IProgressMonitor {
-            override fun done() {
-                if (VSCodeSettings.isVSCode)
-                    client?.progressReport(ProgressReport("Finished!", 1f))
+    fun openFile(file: ILuaFile) {
+        openFiles.add(file)
+        prioritizeRequires(file)
+    }
+
+    /**
+     * the watched file events were skipped while the file was open, it is read from disk again if it differs
+     */
+    fun closeFile(uri: String) {
+        val fileURI = FileURI(uri, false)
+        val luaFile = findLuaFile(fileURI)
+        if (luaFile == null) {
+            // removed from the workspace while it was open
+            openFiles.removeIf { it.uri == fileURI }
+            return
+        }
+        openFiles.remove(luaFile)
+        loadExecutor.execute {
+            // opened again, or replaced meanwhile
+            if (isOpen(luaFile) || findLuaFile(fileURI) !== luaFile)
+                return@execute
+            val file = fileURI.toFile()
+            if (file == null || !file.isFile) {
+                applyFileChanges(mapOf(uri to FileChangeType.Deleted))
+            } else if (!fileManager.isInclude(fileURI)) {
+                removeFile(uri)
+            } else {
+                val text = try {
+                    WorkspaceLoader.readText(file)
+                } catch (e: Exception) {
+                    null
+                }
+                if (text == null || !StringUtil.equals(text, luaFile.getText()))
+                    applyFileChanges(mapOf(uri to FileChangeType.Changed))
             }
+        }
+    }
+
+    /**
+     * open files are compared by identity, look them up with [findLuaFile] first so either uri form matches
+     */
+    private fun isOpen(file: ILuaFile?) = file != null && file in openFiles
+
+    /**
+     * remove the file or folder [uri], the files opened in the client are kept
+     * @return false if nothing was removed
+     */
+    private fun removeClosedFiles(uri: String): Boolean {
+        synchronized(treeLock) {
+            val file = findFile(uri) ?: return false
+            if (file !is IFolder || openFiles.none { file.uri.contains(it.uri) }) {
+                if (file is ILuaFile && file in openFiles)
+                    return false
+                file.parent.removeFile(file)
+                return true
+            }
+            val removeList = mutableListOf<ILuaFile>()
+            file.walkFiles {
+                if (it !in openFiles)
+                    removeList.add(it)
+                true
+            }
+            removeList.forEach { it.parent.removeFile(it) }
+            return removeList.isNotEmpty()
+        }
+    }
 
-            override fun setProgress(text: String, percent: Float) {
-                if (VSCodeSettings.isVSCode)
-                    client?.progressReport(ProgressReport(text, percent))
+    /**
+     * move the files required by [file] ahead of the rest of the running load, if there is one
+     */
+    private fun prioritizeRequires(file: ILuaFile) {
+        val loader = activeLoader ?: return
+        val files = loadingFiles
+        val psi = file.psi as? LuaPsiFile ?: return
+        val extensions = VSCodeSettings.fileExtensions
+        for (path in collectRequirePaths(psi)) {
+            val names = path.replace('.', '/').split('/')
+            for (ext in extensions) {
+                val candidates = files[names.last() + ext] ?: continue
+                for (uri in candidates) {
+                    if (LuaFileRegistry.isModuleFile(uri, names))
+                        loader.prioritize(uri)
+                }
             }
-        })
+        }
     }
 
     private fun refreshWorkspace() {
@@ -334,31 +590,100 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
         return report
     }
 
-    private fun loadWorkspace(monitor: IProgressMonitor) {
+    /**
+     * @return number of files that entered or left the workspace
+     */
+    private fun loadWorkspace(monitor: IProgressMonitor): Int {
+        var changed = 0
         try {
             monitor.setProgress("load workspace folders", 0f)
             val collections = fileManager.findAllFiles()
-            var totalFileCount = 0f
-            var processedCount = 0f
-            collections.forEach { totalFileCount += it.files.size }
+            val included = HashSet<ILuaFile>()
+            val files = LinkedHashSet<FileURI>()
             for (collection in collections) {
                 addRoot(collection.root)
                 for (uri in collection.files) {
+                    val file = findLuaFile(uri)
+                    if (file == null)
+                        files.add(uri)
+                    else
+                        included.add(file)
+                }
+            }
+            changed = removeFilesNotIn(included) + files.size
+            val totalFileCount = files.size.toFloat()
+            var processedCount = 0f
+            val cache = if (files.isEmpty()) null else openStubCache()
+            val loader = WorkspaceLoader(VSCodeSettings.indexWorkers, cache)
+            loadingFiles = files.groupBy { it.name }
+            activeLoader = loader
+            openFiles.forEach { prioritizeRequires(it) }
+            try {
+                loader.load(files.toList()) { uri, file, prioritized ->
                     processedCount++
-                    val file = uri.toFile()
-                    if (file != null) {
-                        monitor.setProgress(
-                            "Emmy parse file[${(processedCount / totalFileCount * 100).toInt()}%]: ${file.name}",
-                            processedCount / totalFileCount
-                        )
-                    }
-                    addFile(uri, null)
+                    monitor.setProgress(
+                        "Emmy parse file[${(processedCount / totalFileCount * 100).toInt()}%]: ${uri.name}",
+                        processedCount / totalFileCount
+                    )
+                    if (file != null && mergeFile(file) && prioritized)
+                        prioritizeRequires(file)
                 }
+            } finally {
+                activeLoader = null
+                loadingFiles = mapOf()
+            }
+            // the keys that depend on inferred types, with all files indexed, see DeferredIndex
+            DeferredIndex.resolvePending()
+            if (cache != null) {
+                cache.release()
+                saveStubCache()
             }
         } catch (e: Exception) {
             System.err.println("workspace parse error: ${e.toString()}")
         }
         monitor.done()
+        return changed
+    }
+
+    private fun openStubCache(): WorkspaceStubCache? {
+        val cacheDir = VSCodeSettings.cacheDir ?: return null
+        val cache = WorkspaceStubCache.forWorkspace(cacheDir, rootList.map { it.uri })
+        cache.load()
+        stubCache = cache
+        return cache
+    }
+
+    private fun saveStubCache() {
+        val cache = stubCache ?: return
+        val files = mutableListOf<LuaFile>()
+        eachRoot { root ->
+            root.walkFiles {
+                if (it is LuaFile)
+                    files.add(it)
+                true
+            }
+        }
+        cache.save(files)
+    }
+
+    /**
+     * attach a file loaded by [WorkspaceLoader] to the folder tree and index it
+     * @return false if the file was added meanwhile, e.g. by opening it
+     */
+    private fun mergeFile(file: LuaFile): Boolean {
+        val fileURI = file.uri
+        synchronized(treeLock) {
+            if (findLuaFile(fileURI) != null)
+                return false
+            val parent = fileURI.parent
+            val folder: IFolder = (if (parent == null)
+                getSchemeFolder(fileURI, true)
+            else
+                findOrCreate(parent, true).first) ?: return false
+            folder.addFile(file)
+            file.index()
+        }
+        return true
     }
 
     override fun findFile(uri: String): IVirtualFile? {
@@ -367,10 +692,26 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
     }
 
     override fun findLuaFile(uri: String): ILuaFile? {
-        return findFile(uri) as? ILuaFile
+        return fileRegistry.find(FileURI(uri, false))
+    }
+
+    override fun findModuleFile(shortUrl: String, extNames: Array<String>): ILuaFile? {
+        return fileRegistry.findModule(shortUrl.split('/'), extNames)
+    }
+
+    override fun <T> read(code: () -> T): T {
+        return WorkspaceSnapshots.read(code)
+    }
+
+    private fun findLuaFile(fileURI: FileURI): ILuaFile? {
+        return fileRegistry.find(fileURI)
     }
 
     private fun findFile(fileURI: FileURI): IVirtualFile? {
+        val luaFile = fileRegistry.find(fileURI)
+        if (luaFile != null)
+            return luaFile
+        // folders are only found in the tree
         val parent = fileURI.parent
         val folder: IFolder? = if (parent == null)
             getSchemeFolder(fileURI, false)
@@ -401,43 +742,44 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
         if (file == null || (!force && !fileManager.isInclude(fileURI))) {
             return null
         }
-        val existFile = findFile(fileURI)
-        if (existFile is ILuaFile) {
-            return existFile
-        }
-
-        val parent = fileURI.parent
-        val folder: IFolder = (if (parent == null)
-            getSchemeFolder(fileURI, true)
-        else
-            findOrCreate(parent, true).first) ?: return null
+        synchronized(treeLock) {
+            val existFile = findLuaFile(fileURI)
+            if (existFile != null) {
+                return existFile
+            }
 
-        return try {
-            val content = text ?: LoadTextUtil.getTextByBinaryPresentation(file.readBytes())
-            folder.addFile(file.name, content)
-        } catch (e: Exception) {
-            System.err.println("Invalidate lua file: ${file.canonicalPath}")
-            null
+            val parent = fileURI.parent
+            val folder: IFolder = (if (parent == null)
+                getSchemeFolder(fileURI, true)
+            else
+                findOrCreate(parent, true).first) ?: return null
+
+            return try {
+                val content = text ?: WorkspaceLoader.readText(file)
+                folder.addFile(file.name, content)
+            } catch (e: Exception) {
+                System.err.println("Invalidate lua file: ${file.canonicalPath}")
+                null
+            }
         }
     }
 
-    private fun addFile(uri: String) {
-        val u = URI(uri)
-        addFile(File(u.path))
-    }
-
     override fun removeFile(uri: String) {
-        val file = findFile(uri)
-        file?.let {
-            it.parent.removeFile(it)
+        synchronized(treeLock) {
+            val file = findFile(uri)
+            file?.let {
+                it.parent.removeFile(it)
+            }
         }
     }
 
     override fun removeFileIfNeeded(uri: String) {
-        val file = findFile(uri)
-        file?.let {
-            if (!fileManager.isInclude(file.uri)) {
-                it.parent.removeFile(it)
+        synchronized(treeLock) {
+            val file = findFile(uri)
+            file?.let {
+                if (!fileManager.isInclude(file.uri)) {
+                    it.parent.removeFile(it)
+                }
             }
         }
     }
@@ -447,6 +789,11 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
     }
 
     fun dispose() {
+        watchedFiles.dispose()
+        if (DeferredIndex.executor === loadExecutor)
+            DeferredIndex.executor = null
+        loadExecutor.shutdownNow()
+        saveStubCache()
         schemeMap.clear()
         rootList.forEach { it.removeAll() }
         rootList.clear()
@@ -462,4 +809,18 @@ class LuaWorkspaceService : WorkspaceService, IWorkspace {
     fun getProject(): Project {
         return project
     }
+
+    companion object {
+        /**
+         * bursts of watched file events are applied once they pause for this long, see [WatchedFilesQueue]
+         */
+        private const val WATCHED_FILES_WINDOW = 300L
+        private const val WATCHED_FILES_MAX_DELAY = 3000L
+
+        /**
+         * workspace symbols are ranked by how well their names match, the best ones up to this many are returned
+         */
+        private const val MAX_WORKSPACE_SYMBOLS = 1000
+        private const val WORKSPACE_SYMBOLS_BATCH = 100
+    }
 }
@@ -7,6 +7,7 @@ import com.tang.vscode.diagnostics.DiagnosticsOptions
 import com.tang.vscode.diagnostics.InspectionsLevel
 import com.tang.vscode.formatter.FormattingOptions
 import com.yevdo.jwildcard.JWildcard
+import java.io.File
 
 private fun <T> listEquals(a: List<T>, b: List<T>): Boolean {
     if (a.size != b.size)
@@ -49,6 +50,16 @@ object VSCodeSettings : IVSCodeSettings {
 
     var clientType = "unknown"
 
+    /**
+     * number of threads used to read and parse files while loading the workspace
+     */
+    var indexWorkers = Runtime.getRuntime().availableProcessors()
+
+    /**
+     * root of the per workspace stub caches, null to disable the cache
+     */
+    var cacheDir: File? = File(System.getProperty("user.home"), ".emmylua/cache")
+
     override val isVSCode get() = clientType == "vsc"
 
     override fun matchFile(name: String): Boolean {
@@ -0,0 +1,72 @@
+package com.tang.vscode
+
+import org.eclipse.lsp4j.FileChangeType
+import org.eclipse.lsp4j.FileEvent
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Collects didChangeWatchedFiles events and hands them to [flush] as one batch
+ * once no new event arrived for [windowMillis], or at the latest [maxDelayMillis] after the first pending event.
+ *
+ * Events for the same uri are coalesced into the change that leads from the state before the batch to the state after it,
+ * a file created and deleted again within the batch is dropped.
+ */
+class WatchedFilesQueue(
+    private val windowMillis: Long,
+    private val maxDelayMillis: Long,
+    private val flush: (batch: Map<String, FileChangeType>) -> Unit
+) {
+    private val scheduler = Executors.newSingleThreadScheduledExecutor { r ->
+        val thread = Thread(r, "emmy-watched-files")
+        thread.isDaemon = true
+        thread
+    }
+    private var pending = LinkedHashMap<String, FileChangeType>()
+    private var firstEventTime = 0L
+    private var scheduled: ScheduledFuture<*>? = null
+
+    @Synchronized
+    fun submit(events: List<FileEvent>) {
+        if (events.isEmpty())
+            return
+        val now = System.currentTimeMillis()
+        if (pending.isEmpty())
+            firstEventTime = now
+        for (event in events) {
+            val merged = coalesce(pending[event.uri], event.type)
+            if (merged == null)
+                pending.remove(event.uri)
+            else
+                pending[event.uri] = merged
+        }
+        scheduled?.cancel(false)
+        val delay = Math.min(windowMillis, Math.max(0, firstEventTime + maxDelayMillis - now))
+        scheduled = scheduler.schedule({ flushPending() }, delay, TimeUnit.MILLISECONDS)
+    }
+
+    fun dispose() {
+        scheduler.shutdownNow()
+    }
+
+    private fun flushPending() {
+        val batch = synchronized(this) {
+            val batch = pending
+            pending = LinkedHashMap()
+            scheduled = null
+            batch
+        }
+        if (batch.isNotEmpty())
+            flush(batch)
+    }
+
+    private fun coalesce(previous: FileChangeType?, next: FileChangeType): FileChangeType? {
+        return when (previous) {
+            null -> next
+            FileChangeType.Created -> if (next == FileChangeType.Deleted) null else FileChangeType.Created
+            FileChangeType.Deleted -> if (next == FileChangeType.Deleted) FileChangeType.Deleted else FileChangeType.Changed
+            else -> if (next == FileChangeType.Deleted) FileChangeType.Deleted else FileChangeType.Changed
+        }
+    }
+}
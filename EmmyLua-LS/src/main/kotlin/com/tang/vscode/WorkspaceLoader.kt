@@ -0,0 +1,177 @@
+package com.tang.vscode
+
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil
+import com.tang.lsp.FileURI
+import com.tang.vscode.api.impl.LuaFile
+import java.io.File
+import java.lang.reflect.Method
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Loads workspace files in three stages:
+ * read/decode and parse run on a pool of [workerCount] threads,
+ * the merge into the folder tree and the stub indexes runs on the calling thread.
+ *
+ * Files are merged in the order they were passed in, so the result does not depend on scheduling,
+ * except for files passed to [prioritize] which are loaded before all others not yet started.
+ * Files with a valid entry in [cache] are restored from it instead of being parsed.
+ */
+class WorkspaceLoader(workerCount: Int, private val cache: WorkspaceStubCache? = null) {
+    private val workerCount = Math.max(1, workerCount)
+
+    private val priorityQueue = ConcurrentLinkedQueue<FileURI>()
+
+    /**
+     * load [uri] next if it is still waiting, can be called from any thread
+     */
+    fun prioritize(uri: FileURI) {
+        priorityQueue.add(uri)
+    }
+
+    /**
+     * @param merge called on the calling thread for every file, with null if it could not be loaded
+     * and with prioritized = true if it was moved ahead by [prioritize]
+     */
+    fun load(files: List<FileURI>, merge: (uri: FileURI, file: LuaFile?, prioritized: Boolean) -> Unit) {
+        if (files.isEmpty())
+            return
+        val executor = Executors.newFixedThreadPool(workerCount, WorkerThreadFactory)
+        try {
+            val remaining = LinkedHashSet(files)
+            // bound the number of files read ahead of the merge step
+            val window = workerCount * 4
+            val pending = java.util.ArrayDeque<Task>()
+            while (remaining.isNotEmpty() || pending.isNotEmpty()) {
+                var uri = priorityQueue.poll()
+                while (uri != null) {
+                    // a prioritized file goes before the files already read ahead
+                    if (remaining.remove(uri))
+                        pending.addFirst(Task(uri, submit(uri, executor), true))
+                    uri = priorityQueue.poll()
+                }
+                while (remaining.isNotEmpty() && pending.size < window) {
+                    val iterator = remaining.iterator()
+                    val next = iterator.next()
+                    iterator.remove()
+                    pending.add(Task(next, submit(next, executor), false))
+                }
+                val task = pending.poll()
+                merge(task.uri, task.future.join(), task.prioritized)
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private class Task(val uri: FileURI, val future: CompletableFuture<LuaFile?>, val prioritized: Boolean)
+
+    private class Content(val text: CharSequence, val hash: String)
+
+    private fun submit(uri: FileURI, executor: ExecutorService): CompletableFuture<LuaFile?> {
+        return CompletableFuture
+            .supplyAsync({ read(uri) }, executor)
+            .thenApplyAsync({ content -> if (content != null) parse(uri, content) else null }, executor)
+    }
+
+    private fun read(uri: FileURI): Content? {
+        val file = uri.toFile() ?: return null
+        return try {
+            read(file) { buffer ->
+                Content(LoadTextUtil.getTextByBinaryPresentation(buffer), WorkspaceStubCache.hash(buffer))
+            }
+        } catch (e: Exception) {
+            System.err.println("Invalidate lua file: ${file.canonicalPath}")
+            null
+        }
+    }
+
+    private fun parse(uri: FileURI, content: Content): LuaFile? {
+        return try {
+            val luaFile = LuaFile(uri)
+            val entry = cache?.get(uri)
+            if (entry != null && entry.hash == content.hash)
+                luaFile.restore(content.text, content.hash, entry.occurrences, entry.deferred)
+            else
+                luaFile.load(content.text, content.hash)
+            luaFile
+        } catch (e: Exception) {
+            System.err.println("Invalidate lua file: $uri")
+            null
+        }
+    }
+
+    companion object {
+        /**
+         * files from this size on are memory mapped, smaller ones are read into a heap buffer
+         */
+        private const val MAP_THRESHOLD = 256 * 1024L
+
+        fun readText(file: File): CharSequence {
+            return read(file) { LoadTextUtil.getTextByBinaryPresentation(it) }
+        }
+
+        /**
+         * [action] must not keep the buffer, a mapped buffer is released as soon as it returns
+         */
+        private fun <T> read(file: File, action: (ByteBuffer) -> T): T {
+            FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+                val size = channel.size()
+                if (size < MAP_THRESHOLD) {
+                    val buffer = ByteBuffer.allocate(size.toInt())
+                    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    }
+                    buffer.flip()
+                    return action(buffer)
+                }
+                val mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+                try {
+                    return action(mapped)
+                } finally {
+                    unmap(mapped)
+                }
+            }
+        }
+
+        private val invokeCleaner: Pair<Any, Method>? by lazy {
+            try {
+                val unsafeClass = Class.forName("sun.misc.Unsafe")
+                val field = unsafeClass.getDeclaredField("theUnsafe")
+                field.isAccessible = true
+                Pair(field.get(null), unsafeClass.getMethod("invokeCleaner", ByteBuffer::class.java))
+            } catch (e: Exception) {
+                // java 8, the mapping is released when the buffer is collected
+                null
+            }
+        }
+
+        /**
+         * release the mapping right away, otherwise the file stays locked on windows until the next gc
+         */
+        private fun unmap(buffer: MappedByteBuffer) {
+            val cleaner = invokeCleaner ?: return
+            try {
+                cleaner.second.invoke(cleaner.first, buffer)
+            } catch (e: Exception) {
+            }
+        }
+    }
+
+    private object WorkerThreadFactory : ThreadFactory {
+        private val count = AtomicInteger()
+
+        override fun newThread(r: Runnable): Thread {
+            val thread = Thread(r, "emmy-index-${count.incrementAndGet()}")
+            thread.isDaemon = true
+            return thread
+        }
+    }
+}
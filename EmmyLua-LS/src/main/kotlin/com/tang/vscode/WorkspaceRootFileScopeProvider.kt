@@ -30,6 +30,14 @@ class WorkspaceRootFileScopeProvider : IFileScopeProvider {
         return configManager?.isExclude(uri) ?: ThreeState.UNSURE
     }
 
+    override fun isExcludeFileName(name: String): ThreeState {
+        return if (VSCodeSettings.matchFile(name)) ThreeState.UNSURE else ThreeState.YES
+    }
+
+    override fun isExcludeDirectory(uri: FileURI): ThreeState {
+        return configManager?.isExcludeDirectory(uri) ?: ThreeState.UNSURE
+    }
+
     override fun isInclude(uri: FileURI): ThreeState {
         if (!VSCodeSettings.matchFile(uri.name)) {
             return ThreeState.NO
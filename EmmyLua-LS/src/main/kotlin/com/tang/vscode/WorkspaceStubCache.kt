@@ -0,0 +1,122 @@
+package com.tang.vscode
+
+import com.tang.intellij.lua.stubs.ElementLocation
+import com.tang.intellij.lua.stubs.IndexOccurrence
+import com.tang.intellij.lua.stubs.LuaStubInputStream
+import com.tang.intellij.lua.stubs.LuaStubOutputStream
+import com.tang.lsp.FileURI
+import com.tang.vscode.api.impl.LuaFile
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+
+/**
+ * Snapshot of the stub index occurrences of every file of a workspace, stored in its own cache directory.
+ * Entries are validated by the content hash of the file and by the format and indexer versions,
+ * files whose entry is still valid are restored without running the indexer, see [LuaFile.restore].
+ * Only the first indexing pass is stored, the second one depends on the other files and runs again.
+ */
+class WorkspaceStubCache(private val file: File) {
+
+    /**
+     * @param occurrences the ones of the first indexing pass
+     * @param deferred the elements it left to the second one, see [com.tang.intellij.lua.stubs.DeferredIndex]
+     */
+    class Entry(val hash: String, val occurrences: List<IndexOccurrence>, val deferred: List<ElementLocation>)
+
+    private var entries = mapOf<String, Entry>()
+
+    fun get(uri: FileURI): Entry? {
+        return entries[uri.toString()]
+    }
+
+    fun load() {
+        if (!file.isFile)
+            return
+        try {
+            LuaStubInputStream(BufferedInputStream(FileInputStream(file))).use { stream ->
+                if (stream.readInt() != MAGIC || stream.readInt() != FORMAT_VERSION || stream.readInt() != IndexOccurrence.VERSION)
+                    return
+                val map = HashMap<String, Entry>()
+                val fileCount = stream.readInt()
+                for (i in 0 until fileCount) {
+                    val uri = stream.readUTFFast()
+                    val hash = stream.readUTFFast()
+                    val size = stream.readVarInt()
+                    val occurrences = ArrayList<IndexOccurrence>(size)
+                    for (j in 0 until size) {
+                        occurrences.add(IndexOccurrence.deserialize(stream))
+                    }
+                    val deferredSize = stream.readVarInt()
+                    val deferred = ArrayList<ElementLocation>(deferredSize)
+                    for (j in 0 until deferredSize) {
+                        deferred.add(ElementLocation.deserialize(stream))
+                    }
+                    map[uri] = Entry(hash, occurrences, deferred)
+                }
+                entries = map
+            }
+        } catch (e: Exception) {
+            System.err.println("invalid stub cache ${file.path}: $e")
+        }
+    }
+
+    /**
+     * entries are only needed while loading, the files keep their own occurrences afterwards
+     */
+    fun release() {
+        entries = mapOf()
+    }
+
+    fun save(files: List<LuaFile>) {
+        try {
+            file.parentFile.mkdirs()
+            val tmp = File(file.parentFile, file.name + ".tmp")
+            LuaStubOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { stream ->
+                stream.writeInt(MAGIC)
+                stream.writeInt(FORMAT_VERSION)
+                stream.writeInt(IndexOccurrence.VERSION)
+                val entries = files.mapNotNull { f ->
+                    val hash = f.contentHash
+                    val occurrences = f.cachedStubs
+                    if (hash != null && occurrences != null) Pair(f.uri.toString(), Entry(hash, occurrences, f.cachedDeferred)) else null
+                }
+                stream.writeInt(entries.size)
+                for ((uri, entry) in entries) {
+                    stream.writeUTFFast(uri)
+                    stream.writeUTFFast(entry.hash)
+                    stream.writeVarInt(entry.occurrences.size)
+                    entry.occurrences.forEach { IndexOccurrence.serialize(it, stream) }
+                    stream.writeVarInt(entry.deferred.size)
+                    entry.deferred.forEach { ElementLocation.serialize(it, stream) }
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        } catch (e: Exception) {
+            System.err.println("can't write stub cache ${file.path}: $e")
+        }
+    }
+
+    companion object {
+        private const val MAGIC = 0x454d4d59
+        private const val FORMAT_VERSION = 2
+
+        fun hash(bytes: ByteArray): String {
+            val digest = MessageDigest.getInstance("MD5").digest(bytes)
+            return digest.joinToString("") { String.format("%02x", it) }
+        }
+
+        fun hash(buffer: ByteBuffer): String {
+            val digest = MessageDigest.getInstance("MD5")
+            digest.update(buffer.duplicate())
+            return digest.digest().joinToString("") { String.format("%02x", it) }
+        }
+
+        fun forWorkspace(cacheDir: File, roots: List<FileURI>): WorkspaceStubCache {
+            val id = hash(roots.map { it.toString() }.sorted().joinToString("\n").toByteArray())
+            return WorkspaceStubCache(File(File(cacheDir, id), "stubs.bin"))
+        }
+    }
+}
@@ -5,31 +5,43 @@ import com.tang.lsp.IFolder
 import com.tang.lsp.ILuaFile
 import com.tang.lsp.IVirtualFile
 
-open class Folder(fileURI: FileURI, private val myName: String? = null)
-    : VirtualFileBase(fileURI), IFolder {
+open class Folder(
+    fileURI: FileURI,
+    private val myName: String? = null,
+    private val registry: LuaFileRegistry? = null
+) : VirtualFileBase(fileURI), IFolder {
 
-    private val children = mutableListOf<IVirtualFile>()
+    // by lower case name, names are compared case insensitively. the map is the lock,
+    // the tree is read by requests while the workspace is loading
+    private val children = LinkedHashMap<String, IVirtualFile>()
 
     override fun getName(): String {
         return myName ?: super.getName()
     }
 
     override fun addFile(file: IVirtualFile) {
-        val old = findFile(file.getName())
-        if (old == file)
-            return
-        if (old != null)
-            removeFile(old)
-
-        val fb = file as VirtualFileBase
-        fb.parent = this
-        children.add(file)
+        synchronized(children) {
+            val old = findFile(file.getName())
+            if (old == file)
+                return
+            if (old != null)
+                removeFile(old)
+
+            val fb = file as VirtualFileBase
+            fb.parent = this
+            children[file.getName().toLowerCase()] = file
+        }
+        if (file is ILuaFile)
+            registry?.add(file)
     }
 
     override fun removeFile(file: IVirtualFile) {
-        children.remove(file)
+        synchronized(children) {
+            children.remove(file.getName().toLowerCase(), file)
+        }
         if (file is ILuaFile) {
             file.unindex()
+            registry?.remove(file)
         } else if (file is IFolder) {
             file.removeAll()
         }
@@ -40,11 +52,15 @@ open class Folder(fileURI: FileURI, private val myName: String? = null)
             removeFile(it)
             true
         }
-        children.clear()
+        synchronized(children) {
+            children.clear()
+        }
     }
 
     override fun findFile(name: String): IVirtualFile? {
-        return children.find { it.getName().toLowerCase() == name.toLowerCase() }
+        synchronized(children) {
+            return children[name.toLowerCase()]
+        }
     }
 
     override fun findFile(vararg names: String): IVirtualFile? {
@@ -86,8 +102,9 @@ open class Folder(fileURI: FileURI, private val myName: String? = null)
     }
 
     override fun walkFiles(processor: (f: ILuaFile) -> Boolean): Boolean {
-        for (i in children.size - 1 downTo 0) {
-            val file = children[i]
+        val snapshot = synchronized(children) { children.values.toTypedArray() }
+        for (i in snapshot.size - 1 downTo 0) {
+            val file = snapshot[i]
 
             if (file is ILuaFile && !processor(file)) {
                 return false
@@ -99,7 +116,7 @@ open class Folder(fileURI: FileURI, private val myName: String? = null)
     }
 
     override fun createFolder(name: String): IFolder {
-        val folder = Folder(uri.resolve(name, true))
+        val folder = Folder(uri.resolve(name, true), null, registry)
         addFile(folder)
         return folder
     }
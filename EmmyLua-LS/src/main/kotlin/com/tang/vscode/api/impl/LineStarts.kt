@@ -0,0 +1,83 @@
+package com.tang.vscode.api.impl
+
+/**
+ * Start offsets of the lines of a text, a line starts after each '\n'.
+ * An edit only scans the inserted text and shifts the starts behind it,
+ * offset and position lookups are binary searches.
+ */
+internal class LineStarts {
+    private var starts = IntArray(16)
+
+    var lineCount = 1
+        private set
+
+    fun reset(text: CharSequence) {
+        lineCount = 1
+        for (i in 0 until text.length) {
+            if (text[i] == '\n') {
+                ensureCapacity(lineCount + 1)
+                starts[lineCount++] = i + 1
+            }
+        }
+    }
+
+    /**
+     * [startOffset, endOffset) of the old text was replaced by [text]
+     */
+    fun update(startOffset: Int, endOffset: Int, text: CharSequence) {
+        // the lines starting inside the replaced range are gone
+        val first = lineOf(startOffset) + 1
+        var last = first
+        while (last < lineCount && starts[last] <= endOffset)
+            last++
+        var inserted = 0
+        for (i in 0 until text.length) {
+            if (text[i] == '\n')
+                inserted++
+        }
+        val newCount = lineCount - (last - first) + inserted
+        ensureCapacity(newCount)
+        System.arraycopy(starts, last, starts, first + inserted, lineCount - last)
+        val delta = text.length - (endOffset - startOffset)
+        for (i in first + inserted until newCount)
+            starts[i] += delta
+        var line = first
+        for (i in 0 until text.length) {
+            if (text[i] == '\n')
+                starts[line++] = startOffset + i + 1
+        }
+        lineCount = newCount
+    }
+
+    fun copy(): LineStarts {
+        val copy = LineStarts()
+        copy.starts = starts.copyOf(Math.max(lineCount, 16))
+        copy.lineCount = lineCount
+        return copy
+    }
+
+    fun getLineStart(line: Int): Int {
+        return starts[line]
+    }
+
+    /**
+     * the line containing [offset], offsets past the end are on the last line
+     */
+    fun lineOf(offset: Int): Int {
+        var low = 0
+        var high = lineCount - 1
+        while (low < high) {
+            val mid = (low + high + 1) ushr 1
+            if (starts[mid] <= offset)
+                low = mid
+            else
+                high = mid - 1
+        }
+        return low
+    }
+
+    private fun ensureCapacity(size: Int) {
+        if (size > starts.size)
+            starts = starts.copyOf(Math.max(size, starts.size * 2))
+    }
+}
@@ -1,22 +1,26 @@
 package com.tang.vscode.api.impl
 
 import com.intellij.lang.PsiBuilderFactory
-import com.intellij.lang.cacheBuilder.DefaultWordsScanner
+import com.intellij.lang.impl.PsiBuilderImpl
 import com.intellij.lexer.FlexAdapter
-import com.intellij.openapi.util.text.StringUtil
 import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.psi.PsiElement
 import com.intellij.psi.PsiFile
-import com.intellij.psi.tree.TokenSet
+import com.intellij.psi.tree.IElementType
+import com.tang.intellij.lua.lang.BlockReparser
+import com.tang.intellij.lua.lang.LuaCharTable
 import com.tang.intellij.lua.lang.LuaLanguageLevel
 import com.tang.intellij.lua.lang.LuaParserDefinition
-import com.tang.intellij.lua.lexer.LuaLexer
 import com.tang.intellij.lua.lexer._LuaLexer
 import com.tang.intellij.lua.parser.LuaParser
 import com.tang.intellij.lua.project.LuaSettings
 import com.tang.intellij.lua.psi.*
 import com.tang.intellij.lua.search.SearchContext
+import com.tang.intellij.lua.stubs.DeferredIndex
+import com.tang.intellij.lua.stubs.ElementLocation
+import com.tang.intellij.lua.stubs.IndexOccurrence
 import com.tang.intellij.lua.stubs.IndexSink
+import com.tang.intellij.lua.stubs.index.LazyStubSource
 import com.tang.intellij.lua.ty.ITyFunction
 import com.tang.intellij.lua.ty.TyClass
 import com.tang.intellij.lua.ty.findPerfectSignature
@@ -27,58 +31,131 @@ import com.tang.vscode.diagnostics.DiagnosticsService
 import org.eclipse.lsp4j.*
 import org.eclipse.lsp4j.jsonrpc.CancelChecker
 import org.eclipse.lsp4j.jsonrpc.messages.Either
-import java.util.concurrent.locks.ReentrantReadWriteLock
-import kotlin.concurrent.read
-import kotlin.concurrent.write
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
-internal data class Line(val line: Int, val startOffset: Int, val stopOffset: Int)
+class LuaFile(override val uri: FileURI) : VirtualFileBase(uri), ILuaFile, VirtualFile, LazyStubSource {
+    /**
+     * A published state of the file, never changed once published.
+     * [previous] is kept while a request reading at an older generation runs, see [WorkspaceSnapshots].
+     */
+    private class Snapshot(
+        val text: CharSequence,
+        val lines: LineStarts,
+        val psi: LuaPsiFile?,
+        // the tokens of the parse, lexed when first needed for a text that was not parsed
+        @Volatile var tokens: TokenBuffer?,
+        val version: Int,
+        val generation: Long,
+        @Volatile var previous: Snapshot?
+    )
 
-class LuaFile(override val uri: FileURI) : VirtualFileBase(uri), ILuaFile, VirtualFile {
-    private var _text: CharSequence = ""
-    private var _lines = mutableListOf<Line>()
+    @Volatile
+    private var _snapshot = Snapshot("", LineStarts(), null, null, 0, 0, null)
+    // the newest tree, the one the indexes point to
+    @Volatile
     private var _myPsi: LuaPsiFile? = null
-    private var _words: List<Word>? = null
-    private var _version: Int = 0
-    private var _rwl = ReentrantReadWriteLock()
+    @Volatile
     private var _isOpen = false
+    // occurrences written by the last indexing, or restored from the stub cache
+    private var _stubs: List<IndexOccurrence>? = null
+    // elements left to the second pass, restored from the stub cache
+    private var _deferred: List<ElementLocation>? = null
+    // id of the lazy postings while the psi of a restored file is not built
+    @Volatile
+    private var _lazyId = -1
+    private val _lazyLock = Any()
+
+    // the edited text, ahead of the published one until the scheduled parse has run
+    private val _editLock = Any()
+    private var _editText: CharSequence = ""
+    private val _editLines = LineStarts()
+    private var _editVersion = 0
+    // the changed range [_changeStart, _changeEnd) in the edited text, everything around it is unchanged since the last parse
+    private var _changeStart = -1
+    private var _changeEnd = -1
+    private var _changeDelta = 0
+    private var _fullChange = false
+    private var _parseTask: ScheduledFuture<*>? = null
+    private val _parseLock = Any()
+
+    /**
+     * hash of the content loaded from disk, null once the text has been edited
+     */
+    var contentHash: String? = null
+        private set
 
     var workspaceDiagnosticResultId: String? = null
 
+    /**
+     * applies the edits to the text right away, the parse runs on a background thread
+     * once no edit came in for [PARSE_DELAY_MILLIS], or earlier if a request [lock]s the file
+     */
     override fun didChange(params: DidChangeTextDocumentParams) {
-        _rwl.write {
-            if (params.contentChanges.isEmpty())
-                return
-
-            var sb = _text.toString()
-            var offset = 0
+        if (params.contentChanges.isEmpty())
+            return
+        synchronized(_editLock) {
+            var text = _editText
             params.contentChanges.forEach {
-                when {
+                if (it.range == null) {
                     // for TextDocumentSyncKind.Full
-                    it.range == null -> sb = it.text
-                    // incremental updating
-                    it.range.start.line >= _lines.size -> {
-                        sb += it.text
-                        _lines.add(Line(it.range.start.line, it.range.start.character, it.range.end.character))
-                    }
-                    else -> {
-                        val sline = _lines[it.range.start.line]
-                        val eline = _lines[it.range.end.line]
-                        val spos = sline.startOffset + it.range.start.character
-                        val epos = eline.startOffset + it.range.end.character
-                        sb = sb.replaceRange(spos, epos, it.text)
-
-                        val textSize = it.text.length
-                        offset += textSize - it.rangeLength
-                    }
+                    text = it.text
+                    _editLines.reset(text)
+                    _fullChange = true
+                } else {
+                    // incremental updating, each range is relative to the text after the previous change
+                    val spos = getOffset(_editLines, text, it.range.start.line, it.range.start.character)
+                    val epos = Math.max(spos, getOffset(_editLines, text, it.range.end.line, it.range.end.character))
+                    text = TextRope.of(text).replace(spos, epos, it.text)
+                    _editLines.update(spos, epos, it.text)
+
+                    val shift = it.text.length - (epos - spos)
+                    _changeEnd = if (_changeStart >= 0 && _changeEnd >= epos) _changeEnd + shift else spos + it.text.length
+                    _changeStart = if (_changeStart >= 0) Math.min(_changeStart, spos) else spos
+                    _changeDelta += shift
                 }
             }
-            _text = sb
-            onChanged()
+            _editText = text
+            _editVersion = nextVersion()
+            contentHash = null
+            _parseTask?.cancel(false)
+            _parseTask = parseScheduler.schedule({ parsePending() }, PARSE_DELAY_MILLIS, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    /**
+     * parse the edits made since the last parse and publish the result, nothing is done if there are none
+     */
+    private fun parsePending() {
+        synchronized(_parseLock) {
+            val text: CharSequence
+            val lines: LineStarts
+            val version: Int
+            val start: Int
+            val end: Int
+            synchronized(_editLock) {
+                if (_editVersion == _snapshot.version)
+                    return
+                text = _editText
+                lines = _editLines.copy()
+                version = _editVersion
+                start = if (_fullChange) -1 else _changeStart
+                end = _changeEnd - _changeDelta
+                _changeStart = -1
+                _changeEnd = -1
+                _changeDelta = 0
+                _fullChange = false
+                _parseTask?.cancel(false)
+                _parseTask = null
+            }
+            doParser(text, lines, version, start, end)
         }
     }
 
     override fun getText(): CharSequence {
-        return _text
+        return snapshot().text
     }
 
     override fun getPath(): String {
@@ -86,114 +163,206 @@ class LuaFile(override val uri: FileURI) : VirtualFileBase(uri), ILuaFile, Virtu
     }
 
     fun setText(str: CharSequence) {
-        _rwl.write {
-            _text = str
+        synchronized(_parseLock) {
+            val version = resetEdits(str)
+            contentHash = null
             _isOpen = true
-            onChanged()
+            doParser(str, _editLines.copy(), version)
         }
     }
 
-    private fun updateLines() {
-        _lines.clear()
-        var pos = 0
-        var lineCount = 0
-        var lineStart = 0
-        val length = _text.length
-        while (pos < length) {
-            val c = _text[pos]
-            val rn = c == '\r' && _text.getOrNull(pos + 1) == '\n'
-
-            if (c == '\n' || rn) {
-                val lbSize = if (rn) 2 else 1
-                val line = Line(lineCount++, lineStart, pos)
-                _lines.add(line)
-                lineStart = pos + lbSize
-                pos += lbSize
-            } else pos++
-
-            if (pos >= length) {
-                val line = Line(lineCount, lineStart, pos)
-                _lines.add(line)
+    /**
+     * Parse [str] without touching the stub indexes, used by the workspace loader on its worker threads.
+     * The file has to be attached to a folder and then [index]ed on the merging thread.
+     */
+    internal fun load(str: CharSequence, hash: String?) {
+        synchronized(_lazyLock) {
+            contentHash = hash
+            val version = resetEdits(str)
+            val (psi, tokens) = parse(str)
+            _myPsi = psi
+            publish(str, _editLines.copy(), psi, tokens, version)
+        }
+    }
+
+    /**
+     * Like [load] but without running the indexer, [index] registers the cached [stubs].
+     * A file without [deferred] elements is not parsed either, its psi is built when it is first needed.
+     * One with them is parsed, the second indexing pass resolves them on the tree, see [DeferredIndex].
+     */
+    internal fun restore(str: CharSequence, hash: String, stubs: List<IndexOccurrence>, deferred: List<ElementLocation>) {
+        synchronized(_lazyLock) {
+            contentHash = hash
+            val version = resetEdits(str)
+            _stubs = stubs
+            _deferred = deferred
+            if (deferred.isEmpty()) {
+                publish(str, _editLines.copy(), null, null, version)
+            } else {
+                val (psi, tokens) = parse(str)
+                _myPsi = psi
+                publish(str, _editLines.copy(), psi, tokens, version)
+            }
+        }
+    }
+
+    /**
+     * replace the edited text with [str], dropping the edits not parsed yet
+     * @return the new version
+     */
+    private fun resetEdits(str: CharSequence): Int {
+        synchronized(_editLock) {
+            _parseTask?.cancel(false)
+            _parseTask = null
+            _editText = str
+            _editLines.reset(str)
+            _editVersion = nextVersion()
+            _changeStart = -1
+            _changeEnd = -1
+            _changeDelta = 0
+            _fullChange = false
+            return _editVersion
+        }
+    }
+
+    /**
+     * the snapshot for the request running on the calling thread, the newest one outside of a request
+     */
+    private fun snapshot(): Snapshot {
+        var snapshot = _snapshot
+        val view = WorkspaceSnapshots.viewGeneration ?: return snapshot
+        while (snapshot.generation > view)
+            snapshot = snapshot.previous ?: return snapshot
+        return snapshot
+    }
+
+    private fun publish(text: CharSequence, lines: LineStarts, psi: LuaPsiFile?, tokens: TokenBuffer?, version: Int) {
+        val oldestView = WorkspaceSnapshots.oldestView
+        val snapshot = Snapshot(text, lines, psi, tokens, version, WorkspaceSnapshots.nextGeneration(), _snapshot)
+        // drop the snapshots no running request reads any more
+        var s = snapshot
+        while (true) {
+            val previous = s.previous ?: break
+            if (oldestView >= s.generation) {
+                s.previous = null
                 break
             }
+            s = previous
         }
+        _snapshot = snapshot
     }
 
-    private fun onChanged() {
-        ++_version
-        updateLines()
-        doParser()
+    /**
+     * @param start start of the changed range in the previous text, -1 if the whole text changed
+     * @param end end of the changed range in the previous text
+     */
+    private fun doParser(text: CharSequence, lines: LineStarts, version: Int, start: Int = -1, end: Int = -1) {
+        synchronized(_lazyLock) {
+            val psi = _myPsi
+            val postings = psi?.postings
+            if (psi == null || postings == null) {
+                unindex()
+                val (newPsi, tokens) = parse(text)
+                _myPsi = newPsi
+                publish(text, lines, newPsi, tokens, version)
+                index()
+                return
+            }
+            // a published tree may only be changed in place while no request reads it, otherwise a new one is parsed
+            val oldTokens = _snapshot.tokens
+            val reparsed = start >= 0 && oldTokens != null && WorkspaceSnapshots.tryWrite {
+                val result = BlockReparser.reparse(psi.node, start, end, text)
+                if (result != null) {
+                    // the block and its closing token were lexed again, the tokens around them are kept
+                    val tokens = oldTokens.splice(result.start, result.end, TokenBuffer.of(result.builder), result.delta)
+                    publish(text, lines, psi, tokens ?: TokenBuffer.lex(text), version)
+                    com.tang.intellij.lua.stubs.removeDetached(psi, postings)
+                }
+                result != null
+            }
+            if (!reparsed) {
+                val (newPsi, tokens) = parse(text)
+                newPsi.id = psi.id
+                _myPsi = newPsi
+                publish(text, lines, newPsi, tokens, version)
+            }
+            // only the postings that differ from the ones of the previous tree are written
+            _stubs = com.tang.intellij.lua.stubs.reindex(_myPsi!!, postings)
+        }
     }
 
-    private fun doParser() {
-        _words = null
-        unindex()
+    /**
+     * @return the tree of [text] and the tokens it was parsed from
+     */
+    private fun parse(text: CharSequence): Pair<LuaPsiFile, TokenBuffer> {
         val parser = LuaParser()
         val builder = PsiBuilderFactory.getInstance().createBuilder(
             LuaParserDefinition(),
             FlexAdapter(_LuaLexer(LuaLanguageLevel.LUA54)),
-            text
-        )
+            text,
+            LuaCharTable
+        ) as PsiBuilderImpl
         val node = parser.parse(LuaParserDefinition.FILE, builder)
-        val psi = node.psi
-        _myPsi = psi as LuaPsiFile
-        _myPsi?.virtualFile = this
+        val psi = node.psi as LuaPsiFile
+        psi.virtualFile = this
+        return Pair(psi, TokenBuffer.of(builder))
+    }
 
-        index()
+    private fun ensurePsi(): LuaPsiFile? {
+        snapshot().psi?.let { return it }
+        if (_lazyId < 0)
+            return _myPsi
+        synchronized(_lazyLock) {
+            val lazyId = _lazyId
+            if (lazyId >= 0) {
+                val snapshot = _snapshot
+                val (psi, tokens) = parse(snapshot.text)
+                val stubs = _stubs
+                if (stubs == null || !com.tang.intellij.lua.stubs.restore(psi, stubs, _deferred ?: emptyList()))
+                    _stubs = com.tang.intellij.lua.stubs.index(psi)
+                IndexSink.removeStubs(lazyId)
+                _myPsi = psi
+                publish(snapshot.text, snapshot.lines, psi, tokens, snapshot.version)
+                _lazyId = -1
+            }
+            return _myPsi
+        }
     }
 
+    override fun ensureIndexed() {
+        ensurePsi()
+    }
 
-    /*private fun getLineStart(line: Int): Int {
-        return _lines.firstOrNull { it.line == line } ?.startOffset ?: 0
-    }*/
 
     override fun getLine(offset: Int): Pair<Int, Int> {
-        if (_lines.size <= 1) {
-            return Pair(0, offset)
-        }
-        var lowIndex = 0
-        var highIndex = _lines.size - 1
-        var currentLine: Line? = null
-        while (lowIndex <= highIndex) {
-            val index = (lowIndex + highIndex) / 2
-            val line = _lines[index]
-            if (line.startOffset <= offset && line.stopOffset >= offset) {
-                currentLine = line
-                break
-            }
-            if (offset < line.startOffset) {
-                highIndex = index - 1
-            } else {
-                lowIndex = index + 1
-            }
-        }
-
-        if (currentLine != null) {
-            //如果找到了
-            return Pair(currentLine.line, offset - currentLine.startOffset)
-        } else {
-            // 没找到那么就认为是lowIndex所在行第0个字符,也可以是currentLine所在行最后一个+1字符
-            return Pair(_lines[lowIndex].line, 0)
-        }
+        val lines = snapshot().lines
+        val line = lines.lineOf(offset)
+        return Pair(line, offset - lines.getLineStart(line))
     }
 
     override fun getPosition(line: Int, char: Int): Int {
-        val lineData = _lines.firstOrNull { it.line == line }
-        var pos = if (lineData != null) lineData.startOffset + char else char
-        if (pos >= _text.length) {
-            pos = _text.length
-        }
-        return pos
+        val snapshot = snapshot()
+        return getOffset(snapshot.lines, snapshot.text, line, char)
+    }
+
+    private fun getOffset(lines: LineStarts, text: CharSequence, line: Int, char: Int): Int {
+        if (line >= lines.lineCount)
+            return text.length
+        return Math.min(lines.getLineStart(line) + char, text.length)
     }
 
     override fun getVersion(): Int {
-        return _version
+        return snapshot().version
     }
 
+    /**
+     * runs [code] on the newest text, waiting for its parse if that is still pending,
+     * the files read by [code] stay at the state they had when it started
+     */
     override fun lock(code: () -> Unit) {
-        _rwl.read {
-            code()
-        }
+        if (WorkspaceSnapshots.viewGeneration == null)
+            parsePending()
+        WorkspaceSnapshots.read(code)
     }
 
     fun diagnostic(diagnostics: MutableList<Diagnostic>, checker: CancelChecker?) {
@@ -201,50 +370,99 @@ class LuaFile(override val uri: FileURI) : VirtualFileBase(uri), ILuaFile, Virtu
     }
 
     override val psi: PsiFile?
-        get() = _myPsi
+        get() = ensurePsi()
+
+    /**
+     * false while the file is restored from the stub cache and its psi has not been built yet
+     */
+    val isParsed: Boolean
+        get() = _myPsi != null
 
     var opened: Boolean
-        get() {
-            _rwl.read {
-                return _isOpen
-            }
-        }
+        get() = _isOpen
         set(value) {
-            _rwl.write {
-                _isOpen = value
-            }
+            _isOpen = value
         }
 
-    override fun getPsiFile() = _myPsi
+    override fun getPsiFile() = ensurePsi()
 
     override fun unindex() {
-        _myPsi?.let { IndexSink.removeStubs(it) }
-    }
-
-    private fun index() {
-        _myPsi?.let { com.tang.intellij.lua.stubs.index(it) }
-    }
-
-    override fun processWords(processor: (w: Word) -> Boolean) {
-        if (_words == null) {
-            val scanner = DefaultWordsScanner(
-                LuaLexer(),
-                TokenSet.EMPTY,
-                TokenSet.EMPTY,
-                TokenSet.EMPTY
-            )
-            val list = mutableListOf<Word>()
-            scanner.processWords(this._text) {
-                val hash = StringUtil.hashCode(it.baseText.subSequence(it.start, it.end))
-                list.add(Word(hash, it.start, it.end))
-                true
+        synchronized(_lazyLock) {
+            _myPsi?.let { IndexSink.removeStubs(it) }
+            if (_lazyId >= 0) {
+                IndexSink.removeStubs(_lazyId)
+                _lazyId = -1
             }
-            _words = list
         }
-        _words?.let { words ->
-            for (word in words) {
-                if (!processor(word)) break
+    }
+
+    internal fun index() {
+        synchronized(_lazyLock) {
+            val psi = _myPsi
+            if (psi != null) {
+                val stubs = _stubs
+                val deferred = _deferred
+                if (stubs == null || deferred == null || !com.tang.intellij.lua.stubs.restore(psi, stubs, deferred))
+                    com.tang.intellij.lua.stubs.index(psi)?.let { _stubs = it }
+            } else {
+                val stubs = _stubs ?: return
+                val lazyId = LuaPsiFile.nextId()
+                stubs.forEach { IndexSink.lazyOccurrence(lazyId, it, this) }
+                _lazyId = lazyId
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * occurrences matching the content loaded from disk, for the stub cache,
+     * only the ones of the first indexing pass, the second one depends on the other files
+     */
+    internal val cachedStubs: List<IndexOccurrence>?
+        get() = if (contentHash == null) null else _stubs
+
+    /**
+     * the elements of [cachedStubs] left to the second indexing pass, see [DeferredIndex]
+     */
+    internal val cachedDeferred: List<ElementLocation>
+        get() {
+            val psi = _myPsi ?: return _deferred ?: emptyList()
+            return DeferredIndex.deferred(psi).map { ElementLocation.create(it) }
+        }
+
+    private fun tokens(snapshot: Snapshot): TokenBuffer {
+        return snapshot.tokens ?: TokenBuffer.lex(snapshot.text).also { snapshot.tokens = it }
+    }
+
+    override fun processWords(processor: (hashCode: Int, start: Int, end: Int) -> Boolean) {
+        val snapshot = snapshot()
+        tokens(snapshot).processWords(snapshot.text, processor)
+    }
+
+    override fun processTokens(processor: (type: IElementType, start: Int, end: Int) -> Boolean) {
+        val tokens = tokens(snapshot())
+        for (i in 0 until tokens.count) {
+            if (!processor(tokens.getType(i), tokens.getStart(i), tokens.getEnd(i)))
+                break
+        }
+    }
+
+    companion object {
+        private val versionCount = AtomicInteger()
+
+        /**
+         * versions are unique across files, a file re-created from disk never reuses the diagnostic result id of the old one
+         */
+        private fun nextVersion(): Int = versionCount.incrementAndGet()
+
+        /**
+         * edits coming in faster than this are parsed together
+         */
+        private const val PARSE_DELAY_MILLIS = 50L
+
+        private val parseScheduler = Executors.newSingleThreadScheduledExecutor { r ->
+            val thread = Thread(r, "emmy-parser")
+            thread.isDaemon = true
+            thread
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.tang.vscode.api.impl
+
+import com.tang.lsp.FileURI
+import com.tang.lsp.ILuaFile
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * All lua files attached to the folder tree of a workspace by uri and by file name, kept up to date by [Folder].
+ * Lookups and iteration do not lock and do not walk the tree.
+ */
+class LuaFileRegistry {
+    // by scheme and path like the folder tree, so "file:/a" and "file:///a" are the same file
+    private val files = ConcurrentHashMap<String, ILuaFile>()
+    // by file name, the candidates of a module path, see findModule
+    private val modules = ConcurrentHashMap<String, Array<ILuaFile>>()
+
+    val size: Int get() = files.size
+
+    fun add(file: ILuaFile) {
+        val old = files.put(key(file.uri), file)
+        if (old === file)
+            return
+        if (old != null)
+            removeModule(old)
+        modules.compute(file.getName()) { _, list -> if (list == null) arrayOf(file) else list + file }
+    }
+
+    fun remove(file: ILuaFile) {
+        // a file replaced under the same uri stays registered
+        if (files.remove(key(file.uri), file))
+            removeModule(file)
+    }
+
+    fun find(uri: FileURI): ILuaFile? {
+        return files[key(uri)]
+    }
+
+    /**
+     * find the file of a module path like require("a.b.c") does, see [isModuleFile]
+     * @param names the module path split at '.' or '/'
+     */
+    fun findModule(names: List<String>, extNames: Array<String>): ILuaFile? {
+        for (ext in extNames) {
+            val candidates = modules[names.last() + ext] ?: continue
+            for (file in candidates) {
+                if (isModuleFile(file.uri, names))
+                    return file
+            }
+        }
+        return null
+    }
+
+    fun process(processor: (f: ILuaFile) -> Boolean): Boolean {
+        for (file in files.values) {
+            if (!processor(file))
+                return false
+        }
+        return true
+    }
+
+    private fun removeModule(file: ILuaFile) {
+        modules.computeIfPresent(file.getName()) { _, list ->
+            val rest = list.filter { it !== file }
+            if (rest.isEmpty()) null else rest.toTypedArray()
+        }
+    }
+
+    private fun key(uri: FileURI): String {
+        val raw = uri.raw
+        val path = raw.path ?: raw.schemeSpecificPart
+        return "${uri.scheme}:${path.trimEnd('/').toLowerCase()}"
+    }
+
+    companion object {
+        /**
+         * the parent folders of the file must end with the module path, the file name is matched by the caller
+         */
+        fun isModuleFile(uri: FileURI, names: List<String>): Boolean {
+            val offset = uri.nameCount - names.size
+            if (offset < 0)
+                return false
+            for (i in 0 until names.size - 1) {
+                if (uri.getName(offset + i) != names[i])
+                    return false
+            }
+            return true
+        }
+    }
+}
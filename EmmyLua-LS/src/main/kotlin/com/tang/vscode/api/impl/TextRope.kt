@@ -0,0 +1,162 @@
+package com.tang.vscode.api.impl
+
+/**
+ * Immutable text as a balanced tree of chunks, [replace] shares the unchanged chunks with the previous text
+ * and costs O(log n) instead of copying the whole text.
+ * Sequential reads, like the ones of the lexer, stay O(1) by remembering the chunk of the last read.
+ */
+class TextRope private constructor(private val root: Node) : CharSequence {
+
+    private class Chunk(val node: Leaf, val start: Int)
+
+    @Volatile
+    private var lastChunk: Chunk? = null
+
+    override val length: Int
+        get() = root.length
+
+    override fun get(index: Int): Char {
+        val chunk = lastChunk
+        if (chunk != null) {
+            val i = index - chunk.start
+            if (i >= 0 && i < chunk.node.length)
+                return chunk.node.chars[i]
+        }
+        if (index < 0 || index >= length)
+            throw IndexOutOfBoundsException("index $index, length $length")
+        var node = root
+        var start = 0
+        while (node is Concat) {
+            val leftLength = node.left.length
+            if (index < start + leftLength) {
+                node = node.left
+            } else {
+                start += leftLength
+                node = node.right
+            }
+        }
+        val leaf = node as Leaf
+        lastChunk = Chunk(leaf, start)
+        return leaf.chars[index - start]
+    }
+
+    override fun subSequence(startIndex: Int, endIndex: Int): CharSequence {
+        if (startIndex < 0 || endIndex > length || startIndex > endIndex)
+            throw IndexOutOfBoundsException("range $startIndex..$endIndex, length $length")
+        val chunk = lastChunk
+        if (chunk != null && startIndex >= chunk.start && endIndex <= chunk.start + chunk.node.length)
+            return chunk.node.chars.substring(startIndex - chunk.start, endIndex - chunk.start)
+        val node = slice(root, startIndex, endIndex)
+        return if (node is Leaf) node.chars else TextRope(node)
+    }
+
+    /**
+     * @return the text with [startIndex, endIndex) replaced by [text], this one is not changed
+     */
+    fun replace(startIndex: Int, endIndex: Int, text: CharSequence): TextRope {
+        if (startIndex < 0 || endIndex > length || startIndex > endIndex)
+            throw IndexOutOfBoundsException("range $startIndex..$endIndex, length $length")
+        var node = slice(root, 0, startIndex)
+        if (text.isNotEmpty())
+            node = join(node, build(text, 0, text.length))
+        node = join(node, slice(root, endIndex, length))
+        return TextRope(node)
+    }
+
+    override fun toString(): String {
+        val sb = StringBuilder(length)
+        appendTo(root, sb)
+        return sb.toString()
+    }
+
+    private abstract class Node(val length: Int, val depth: Int)
+
+    private class Leaf(val chars: String) : Node(chars.length, 0)
+
+    private class Concat(val left: Node, val right: Node)
+        : Node(left.length + right.length, Math.max(left.depth, right.depth) + 1)
+
+    companion object {
+        private const val CHUNK_SIZE = 1024
+
+        private val EMPTY = Leaf("")
+
+        fun of(text: CharSequence): TextRope {
+            return text as? TextRope ?: TextRope(build(text, 0, text.length))
+        }
+
+        private fun build(text: CharSequence, start: Int, end: Int): Node {
+            val length = end - start
+            if (length <= CHUNK_SIZE)
+                return Leaf(text.subSequence(start, end).toString())
+            // split on chunk boundaries so that all chunks but the last one are full
+            val chunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE
+            val mid = start + chunks / 2 * CHUNK_SIZE
+            return Concat(build(text, start, mid), build(text, mid, end))
+        }
+
+        private fun appendTo(node: Node, sb: StringBuilder) {
+            if (node is Concat) {
+                appendTo(node.left, sb)
+                appendTo(node.right, sb)
+            } else {
+                sb.append((node as Leaf).chars)
+            }
+        }
+
+        private fun slice(node: Node, start: Int, end: Int): Node {
+            if (start == 0 && end == node.length)
+                return node
+            if (start == end)
+                return EMPTY
+            if (node is Leaf)
+                return Leaf(node.chars.substring(start, end))
+            node as Concat
+            val leftLength = node.left.length
+            if (end <= leftLength)
+                return slice(node.left, start, end)
+            if (start >= leftLength)
+                return slice(node.right, start - leftLength, end - leftLength)
+            return join(slice(node.left, start, leftLength), slice(node.right, 0, end - leftLength))
+        }
+
+        /**
+         * concatenation keeping the depths of both sides within one, like an avl tree
+         */
+        private fun join(left: Node, right: Node): Node {
+            if (left.length == 0)
+                return right
+            if (right.length == 0)
+                return left
+            if (left is Leaf && right is Leaf && left.length + right.length <= CHUNK_SIZE)
+                return Leaf(left.chars + right.chars)
+            if (left.depth > right.depth + 1) {
+                left as Concat
+                return balance(left.left, join(left.right, right))
+            }
+            if (right.depth > left.depth + 1) {
+                right as Concat
+                return balance(join(left, right.left), right.right)
+            }
+            return Concat(left, right)
+        }
+
+        private fun balance(left: Node, right: Node): Node {
+            if (left.depth > right.depth + 1) {
+                left as Concat
+                if (left.left.depth >= left.right.depth)
+                    return Concat(left.left, Concat(left.right, right))
+                val inner = left.right as Concat
+                return Concat(Concat(left.left, inner.left), Concat(inner.right, right))
+            }
+            if (right.depth > left.depth + 1) {
+                right as Concat
+                if (right.right.depth >= right.left.depth)
+                    return Concat(Concat(left, right.left), right.right)
+                val inner = right.left as Concat
+                return Concat(Concat(left, inner.left), Concat(inner.right, right.right))
+            }
+            return Concat(left, right)
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.tang.vscode.api.impl
+
+import com.intellij.lang.impl.PsiBuilderImpl
+import com.intellij.lexer.FlexAdapter
+import com.intellij.psi.tree.IElementType
+import com.tang.intellij.lua.lang.LuaLanguageLevel
+import com.tang.intellij.lua.lexer._LuaLexer
+
+/**
+ * The tokens the parser lexed from a text, whitespace and comments included, kept in arrays:
+ * the start offset and the index of the element type of each token.
+ * The words in the tokens are stripped like [com.intellij.lang.cacheBuilder.DefaultWordsScanner] does
+ * when they are first asked for, without lexing the text again.
+ */
+internal class TokenBuffer private constructor(
+    // one more than the tokens, the last one is the end of the text
+    private val starts: IntArray,
+    private val types: ShortArray,
+    val count: Int
+) {
+    // start, end and hash of each word
+    @Volatile
+    private var words: IntArray? = null
+
+    fun getType(index: Int): IElementType = IElementType.find(types[index])
+
+    fun getStart(index: Int) = starts[index]
+
+    fun getEnd(index: Int) = starts[index + 1]
+
+    /**
+     * @param text the text the tokens were lexed from
+     */
+    fun processWords(text: CharSequence, processor: (hashCode: Int, start: Int, end: Int) -> Boolean) {
+        val words = this.words ?: stripWords(text).also { this.words = it }
+        var i = 0
+        while (i < words.size) {
+            if (!processor(words[i + 2], words[i], words[i + 1]))
+                break
+            i += 3
+        }
+    }
+
+    private fun stripWords(text: CharSequence): IntArray {
+        var words = IntArray(Math.max(16, count))
+        var size = 0
+        for (token in 0 until count) {
+            val to = starts[token + 1]
+            var index = starts[token]
+            while (index < to) {
+                // Character.isJavaIdentifierXXX is slow, ascii goes first
+                val c = text[index]
+                if (!isAsciiIdentifierPart(c) && !Character.isJavaIdentifierStart(c)) {
+                    index++
+                    continue
+                }
+                val wordStart = index
+                var hash = c.toInt()
+                while (++index < to) {
+                    val p = text[index]
+                    if (!isAsciiIdentifierPart(p) && !Character.isJavaIdentifierPart(p))
+                        break
+                    hash = 31 * hash + p.toInt()
+                }
+                if (size + 3 > words.size)
+                    words = words.copyOf(words.size * 2)
+                words[size++] = wordStart
+                words[size++] = index
+                words[size++] = hash
+            }
+        }
+        return words.copyOf(size)
+    }
+
+    /**
+     * the tokens after [start, end) of the text was lexed again into [tokens], which start at [start],
+     * the tokens behind [end] are moved by [delta]
+     * @return null if [start] or [end] is not a token boundary
+     */
+    fun splice(start: Int, end: Int, tokens: TokenBuffer, delta: Int): TokenBuffer? {
+        val first = starts.binarySearch(start, 0, count + 1)
+        val last = starts.binarySearch(end, 0, count + 1)
+        if (first < 0 || last < 0)
+            return null
+        val newCount = first + tokens.count + (count - last)
+        val newStarts = IntArray(newCount + 1)
+        val newTypes = ShortArray(newCount)
+        System.arraycopy(starts, 0, newStarts, 0, first)
+        System.arraycopy(types, 0, newTypes, 0, first)
+        for (i in 0 until tokens.count) {
+            newStarts[first + i] = tokens.starts[i] + start
+            newTypes[first + i] = tokens.types[i]
+        }
+        for (i in last..count)
+            newStarts[first + tokens.count + i - last] = starts[i] + delta
+        System.arraycopy(types, last, newTypes, first + tokens.count, count - last)
+        return TokenBuffer(newStarts, newTypes, newCount)
+    }
+
+    companion object {
+        /**
+         * the tokens of the text [builder] has parsed
+         */
+        fun of(builder: PsiBuilderImpl): TokenBuffer {
+            val count = builder.lexemeCount
+            val lexTypes = builder.lexemeTypes
+            val types = ShortArray(count) { lexTypes[it].index }
+            return TokenBuffer(builder.lexemeStarts.copyOf(count + 1), types, count)
+        }
+
+        /**
+         * lex [text], for a text that has not been parsed
+         */
+        fun lex(text: CharSequence): TokenBuffer {
+            val lexer = FlexAdapter(_LuaLexer(LuaLanguageLevel.LUA54))
+            lexer.start(text)
+            var starts = IntArray(64)
+            var types = ShortArray(64)
+            var count = 0
+            while (true) {
+                val type = lexer.tokenType ?: break
+                if (count + 1 >= starts.size) {
+                    starts = starts.copyOf(starts.size * 2)
+                    types = types.copyOf(types.size * 2)
+                }
+                starts[count] = lexer.tokenStart
+                types[count++] = type.index
+                lexer.advance()
+            }
+            starts[count] = text.length
+            return TokenBuffer(starts, types, count)
+        }
+
+        private fun isAsciiIdentifierPart(c: Char): Boolean {
+            return c in 'a'..'z' || c in 'A'..'Z' || c in '0'..'9' || c == '$'
+        }
+    }
+}
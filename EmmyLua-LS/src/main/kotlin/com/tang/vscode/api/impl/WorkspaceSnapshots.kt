@@ -0,0 +1,72 @@
+package com.tang.vscode.api.impl
+
+import java.util.TreeMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Generations of the workspace files: every text and tree a file publishes gets the next generation.
+ *
+ * A request [read]s at the generation current when it started, [LuaFile] answers it with the newest snapshot
+ * not newer than that, so the request sees one state of the workspace even while files are parsed again concurrently.
+ * Published trees are not changed while any request runs, see [tryWrite].
+ */
+internal object WorkspaceSnapshots {
+    private val generation = AtomicLong()
+
+    // generations of the running requests, with the number of requests at each
+    private val views = TreeMap<Long, Int>()
+
+    private val currentView = ThreadLocal<Long>()
+
+    fun nextGeneration(): Long = generation.incrementAndGet()
+
+    /**
+     * the generation the calling thread reads at, null outside of [read]
+     */
+    val viewGeneration: Long?
+        get() = currentView.get()
+
+    /**
+     * the oldest generation a running request reads at, [Long.MAX_VALUE] if there is none
+     */
+    val oldestView: Long
+        @Synchronized get() = if (views.isEmpty()) Long.MAX_VALUE else views.firstKey()
+
+    /**
+     * run [code] at the current generation, a nested call keeps the generation of the outer one
+     */
+    fun <T> read(code: () -> T): T {
+        if (currentView.get() != null)
+            return code()
+        val view = synchronized(this) {
+            val view = generation.get()
+            views[view] = (views[view] ?: 0) + 1
+            view
+        }
+        currentView.set(view)
+        try {
+            return code()
+        } finally {
+            currentView.remove()
+            synchronized(this) {
+                val count = views[view] ?: 1
+                if (count > 1)
+                    views[view] = count - 1
+                else
+                    views.remove(view)
+            }
+        }
+    }
+
+    /**
+     * run [code], which changes a published tree in place, if no request is running,
+     * requests starting meanwhile wait for it
+     * @return false without running [code] if a request is running, the result of [code] otherwise
+     */
+    @Synchronized
+    fun tryWrite(code: () -> Boolean): Boolean {
+        if (views.isNotEmpty())
+            return false
+        return code()
+    }
+}
@@ -94,6 +94,21 @@ class ConfigurationManager : IConfigurationManager {
         return ThreeState.UNSURE
     }
 
+    override fun isExcludeDirectory(uri: FileURI): ThreeState {
+        for (structure in list) {
+            if (structure.source.workspaceURI.contains(uri)) {
+                for (root in structure.sourceRoots) {
+                    if (root.isExcludeDirectory(uri) == ThreeState.YES) {
+                        return ThreeState.YES
+                    }
+                }
+                return ThreeState.UNSURE
+            }
+        }
+
+        return ThreeState.UNSURE
+    }
+
     override fun getConfigurationFor(root: FileURI): IConfigurationStructure? {
         for (structure in list) {
             if (root.contains(structure.source.fileURI)) {
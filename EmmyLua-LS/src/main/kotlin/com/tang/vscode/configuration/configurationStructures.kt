@@ -70,6 +70,23 @@ data class SourceRoot(
         return ThreeState.NO
     }
 
+    /**
+     * only patterns ending with `**` match everything below a directory
+     */
+    fun isExcludeDirectory(uri: FileURI): ThreeState {
+        val r = absoluteDir?.relativize(uri)
+        if (r == null || r == uri) {
+            return ThreeState.UNSURE
+        }
+        val path = r.toString().trimEnd('/')
+        for (pattern in exclude) {
+            if (pattern.replace('\\', '/').trimEnd('/').endsWith("**") && Pattern.match(pattern, path)) {
+                return ThreeState.YES
+            }
+        }
+        return ThreeState.NO
+    }
+
     override fun isInclude(uri: FileURI): ThreeState {
         return when(isExclude(uri)) {
             ThreeState.YES -> ThreeState.NO
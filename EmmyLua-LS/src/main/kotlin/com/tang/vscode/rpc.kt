@@ -23,6 +23,8 @@ data class Annotator(val uri: String, val ranges: List<RenderRange>, val type: A
 
 data class ProgressReport(val text: String, val percent: Float)
 
+data class IndexingReport(val fileCount: Int, val time: Long)
+
 enum class UpdateType {
     Created,
     Changed,
@@ -19,6 +19,7 @@ package com.intellij.lang;
 import com.intellij.lang.impl.PsiBuilderFactoryImpl;
 import com.intellij.lexer.Lexer;
 import com.intellij.openapi.project.Project;
+import com.intellij.util.CharTable;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -52,4 +53,13 @@ public abstract class PsiBuilderFactory {
 
   @NotNull
   public abstract PsiBuilder createBuilder(@NotNull ParserDefinition parserDefinition, @NotNull Lexer lexer, @NotNull CharSequence seq);
+
+  /**
+   * @param charTable table the token texts are interned in, a new one for the tree if null
+   */
+  @NotNull
+  public abstract PsiBuilder createBuilder(@NotNull ParserDefinition parserDefinition,
+                                           @NotNull Lexer lexer,
+                                           @NotNull CharSequence seq,
+                                           @Nullable CharTable charTable);
 }
@@ -20,6 +20,7 @@ import com.intellij.core.LanguageParserDefinitions;
 import com.intellij.lang.*;
 import com.intellij.lexer.Lexer;
 import com.intellij.openapi.project.Project;
+import com.intellij.util.CharTable;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -81,4 +82,13 @@ public class PsiBuilderFactoryImpl extends PsiBuilderFactory {
                                   @NotNull final CharSequence seq) {
     return new PsiBuilderImpl(null, null, parserDefinition, lexer, null, seq, null, null);
   }
+
+  @NotNull
+  @Override
+  public PsiBuilder createBuilder(@NotNull final ParserDefinition parserDefinition,
+                                  @NotNull final Lexer lexer,
+                                  @NotNull final CharSequence seq,
+                                  @Nullable final CharTable charTable) {
+    return new PsiBuilderImpl(null, null, parserDefinition, lexer, charTable, seq, null, null);
+  }
 }
@@ -933,6 +933,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
                 createComposite(rootMarker, getASTFactory());
         if (myCharTable == null) {
             myCharTable = rootNode instanceof FileElement ? ((FileElement) rootNode).getCharTable() : new CharTableImpl();
+        } else if (rootNode instanceof FileElement) {
+            ((FileElement) rootNode).setCharTable(myCharTable);
         }
         if (!(rootNode instanceof FileElement)) {
             rootNode.putUserData(CharTable.CHAR_TABLE_KEY, myCharTable);
@@ -1670,6 +1672,29 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
         return myLexer;
     }
 
+    /**
+     * @return the number of lexemes of the text, whitespace and comments included
+     */
+    public int getLexemeCount() {
+        return myLexemeCount;
+    }
+
+    /**
+     * @return the start offsets of the lexemes, the one at {@link #getLexemeCount()} is the end of the text
+     */
+    @NotNull
+    public int[] getLexemeStarts() {
+        return myLexStarts;
+    }
+
+    /**
+     * @return the types of the lexemes, as remapped by the parser
+     */
+    @NotNull
+    public IElementType[] getLexemeTypes() {
+        return myLexTypes;
+    }
+
     @NotNull
     protected TreeElement createLeaf(@NotNull IElementType type, final int start, final int end) {
         CharSequence text = myCharTable.intern(myText, start, end);
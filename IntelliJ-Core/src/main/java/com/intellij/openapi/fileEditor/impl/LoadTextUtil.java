@@ -288,6 +288,95 @@ public final class LoadTextUtil {
         return result.text;
     }
 
+    /**
+     * Decodes {@code buffer} from its position to its limit without copying it to a byte array first,
+     * so it may be a memory mapped file. The buffer is not referenced by the result unless it is backed by an array.
+     * <p>
+     * The charset comes from the BOM, otherwise valid UTF-8 content is decoded as UTF-8, seven bit content is taken
+     * as one char per byte and returned as a compact {@link ByteArrayCharSequence}, and any other content is decoded
+     * with the default system charset like {@link #getTextByBinaryPresentation(byte[])} does.
+     */
+    @NotNull
+    public static CharSequence getTextByBinaryPresentation(@NotNull ByteBuffer buffer) {
+        int startOffset = buffer.position();
+        int endOffset = buffer.limit();
+        byte[] head = new byte[Math.min(4, endOffset - startOffset)];
+        for (int i = 0; i < head.length; i++) {
+            head[i] = buffer.get(startOffset + i);
+        }
+        Charset charset = CharsetToolkit.guessFromBOM(head);
+        if (charset != null) {
+            return convertBytes(buffer, startOffset + CharsetToolkit.getBOMLength(head, charset), endOffset, charset).text;
+        }
+        CharsetToolkit.GuessedEncoding guessed = CharsetToolkit.guessFromContent(buffer, startOffset, endOffset);
+        if (guessed == CharsetToolkit.GuessedEncoding.VALID_UTF8) {
+            return convertBytes(buffer, startOffset, endOffset, CharsetToolkit.UTF8_CHARSET).text;
+        }
+        if (guessed == CharsetToolkit.GuessedEncoding.SEVEN_BIT) {
+            return convertLineSeparatorsToSlashN(buffer, startOffset, endOffset).text;
+        }
+        return convertBytes(buffer, startOffset, endOffset, CharsetToolkit.getDefaultSystemCharset()).text;
+    }
+
+    @NotNull
+    private static ConvertResult convertBytes(@NotNull ByteBuffer buffer,
+                                              int startOffset, int endOffset,
+                                              @NotNull Charset charset) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(endOffset);
+        slice.position(startOffset);
+        CharBuffer charBuffer;
+        try {
+            charBuffer = charset.decode(slice);
+        } catch (Exception e) {
+            charBuffer = CharBuffer.wrap(ArrayUtil.EMPTY_CHAR_ARRAY);
+        }
+        return convertLineSeparatorsToSlashN(charBuffer);
+    }
+
+    @NotNull
+    private static ConvertResult convertLineSeparatorsToSlashN(@NotNull ByteBuffer buffer, int startOffset, int endOffset) {
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset();
+            return convertLineSeparatorsToSlashN(buffer.array(), offset + startOffset, offset + endOffset);
+        }
+        // single pass over the (mapped) buffer, the copy is the only heap allocation
+        int dst = 0;
+        byte prev = ' ';
+        int crCount = 0;
+        int lfCount = 0;
+        int crlfCount = 0;
+        byte[] result = new byte[endOffset - startOffset];
+
+        for (int src = startOffset; src < endOffset; src++) {
+            byte c = buffer.get(src);
+            switch (c) {
+                case '\r':
+                    result[dst++] = '\n';
+                    crCount++;
+                    break;
+                case '\n':
+                    if (prev == '\r') {
+                        crCount--;
+                        crlfCount++;
+                    } else {
+                        result[dst++] = '\n';
+                        lfCount++;
+                    }
+                    break;
+                default:
+                    result[dst++] = c;
+                    break;
+            }
+            prev = c;
+        }
+
+        String detectedLineSeparator = guessLineSeparator(crCount, lfCount, crlfCount);
+
+        ByteArrayCharSequence sequence = new ByteArrayCharSequence(result, 0, dst);
+        return new ConvertResult(sequence, detectedLineSeparator);
+    }
+
     @NotNull
     private static ConvertResult convertBytes(@NotNull byte[] bytes,
                                               final int startOffset, int endOffset,
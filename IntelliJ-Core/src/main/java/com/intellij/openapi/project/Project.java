@@ -17,6 +17,7 @@ package com.intellij.openapi.project;
 
 import com.intellij.openapi.util.UserDataHolder;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.search.SearchScope;
 import com.intellij.util.Processor;
 
 /**
@@ -31,4 +32,9 @@ import com.intellij.util.Processor;
  */
 public interface Project extends UserDataHolder {
     void process(Processor<PsiFile> processor);
+
+    /**
+     * like {@link #process(Processor)} for the files in {@code scope}, the psi of the other files is not built
+     */
+    void process(SearchScope scope, Processor<PsiFile> processor);
 }
\ No newline at end of file
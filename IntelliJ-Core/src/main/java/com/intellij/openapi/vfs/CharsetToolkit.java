@@ -345,6 +345,15 @@ public class CharsetToolkit {
 
   @NotNull
   public GuessedEncoding guessFromContent(int startOffset, int endOffset) {
+    return guessFromContent(ByteBuffer.wrap(buffer), startOffset, endOffset);
+  }
+
+  /**
+   * Same as {@link #guessFromContent(int, int)} but reads the bytes with absolute gets,
+   * so {@code buffer} may be a direct or memory mapped buffer and its position is left untouched.
+   */
+  @NotNull
+  public static GuessedEncoding guessFromContent(@NotNull ByteBuffer buffer, int startOffset, int endOffset) {
     // if a byte has its most significant bit set, the file is in UTF-8 or in the default encoding
     // otherwise, the file is in US-ASCII
     boolean highOrderBit = false;
@@ -356,16 +365,16 @@ public class CharsetToolkit {
     // true if char bytes < BINARY_THRESHOLD occurred
     boolean hasBinary = false;
 
-    int end = Math.min(buffer.length, endOffset);
+    int end = Math.min(buffer.limit(), endOffset);
     int i = startOffset;
     while (i < end) {
-      byte b0 = buffer[i];
-      byte b1 = i + 1 >= end ? 0 : buffer[i + 1];
-      byte b2 = i + 2 >= end ? 0 : buffer[i + 2];
-      byte b3 = i + 3 >= end ? 0 : buffer[i + 3];
-      byte b4 = i + 4 >= end ? 0 : buffer[i + 4];
-      byte b5 = i + 5 >= end ? 0 : buffer[i + 5];
+      byte b0 = buffer.get(i);
       if (b0 < 0) {
+        byte b1 = i + 1 >= end ? 0 : buffer.get(i + 1);
+        byte b2 = i + 2 >= end ? 0 : buffer.get(i + 2);
+        byte b3 = i + 3 >= end ? 0 : buffer.get(i + 3);
+        byte b4 = i + 4 >= end ? 0 : buffer.get(i + 4);
+        byte b5 = i + 5 >= end ? 0 : buffer.get(i + 5);
         // a high order bit was encountered, thus the encoding is not US-ASCII
         // it may be either an 8-bit encoding or UTF-8
         highOrderBit = true;
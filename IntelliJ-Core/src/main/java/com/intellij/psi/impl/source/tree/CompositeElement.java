@@ -17,6 +17,7 @@
 package com.intellij.psi.impl.source.tree;
 
 import com.intellij.core.LanguageParserDefinitions;
+import com.intellij.extapi.psi.ASTDelegatePsiElement;
 import com.intellij.lang.ASTNode;
 import com.intellij.lang.Language;
 import com.intellij.lang.ParserDefinition;
@@ -74,22 +75,18 @@ public class CompositeElement extends TreeElement {
     }
 
     public void subtreeChanged() {
-        /*CompositeElement compositeElement = this;
+        CompositeElement compositeElement = this;
         while (compositeElement != null) {
             compositeElement.clearCaches();
             if (!(compositeElement instanceof PsiElement)) {
                 final PsiElement psi = compositeElement.myWrapper;
                 if (psi instanceof ASTDelegatePsiElement) {
                     ((ASTDelegatePsiElement) psi).subtreeChanged();
-                } else if (psi instanceof PsiFile) {
-                    ((PsiFile) psi).subtreeChanged();
-                    assertThreading((PsiFile) psi);
                 }
             }
 
             compositeElement = compositeElement.getTreeParent();
-        }*/
-        throw new UnsupportedOperationException();
+        }
     }
 
     @Override
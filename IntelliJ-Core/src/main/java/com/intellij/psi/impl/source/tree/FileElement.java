@@ -38,6 +38,10 @@ public class FileElement extends LazyParseableElement implements FileASTNode, Ge
         return charTable;
     }
 
+    public void setCharTable(@NotNull CharTable table) {
+        charTable = table;
+    }
+
     @NotNull
     @Override
     public LighterAST getLighterAST() {
@@ -23,6 +23,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Getter;
 import com.intellij.openapi.util.StaticGetter;
 import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.ILazyParseableElementTypeBase;
 import com.intellij.reference.SoftReference;
 import com.intellij.util.text.CharArrayUtil;
 import com.intellij.util.text.ImmutableCharSequence;
@@ -70,6 +71,15 @@ public class LazyParseableElement extends CompositeElement {
         }
     }
 
+    @NotNull
+    @Override
+    public CompositeElement clone() {
+        // not while the children are set by another thread
+        synchronized (lock) {
+            return super.clone();
+        }
+    }
+
     @Override
     public void clearCaches() {
         super.clearCaches();
@@ -162,68 +172,27 @@ public class LazyParseableElement extends CompositeElement {
         super.setLastChildNode(child);
     }
 
-    /*private void ensureParsed() {
+    private void ensureParsed() {
         if (!ourParsingAllowed) {
             LOG.error("Parsing not allowed!!!");
         }
         if (myParsed) return;
 
-        CharSequence text;
         synchronized (lock) {
             if (myParsed) return;
-            text = myText.get();
+            CharSequence text = myText.get();
             assert text != null;
-        }
-
-        FileElement fileElement = TreeUtil.getFileElement(this);
-        if (fileElement == null) {
-            LOG.error("Chameleons must not be parsed till they're in file tree: " + this);
-        } else {
-            fileElement.assertReadAccessAllowed();
-        }
 
-        DebugUtil.performPsiModification("lazy-parsing", () -> {
+            // the children are complete before they are visible, readers on other threads see either nothing or all
             TreeElement parsedNode = (TreeElement) ((ILazyParseableElementTypeBase) getElementType()).parseContents(this);
-            assertTextLengthIntact(text, parsedNode);
-
-            synchronized (lock) {
-                if (myParsed) return;
-                if (rawFirstChild() != null) {
-                    LOG.error("Reentrant parsing?");
-                }
-
-                if (parsedNode != null) {
-                    setChildren(parsedNode, AstPath.getNodePath(this));
-                }
-
-                myParsed = true;
-                myText = new SoftReference<>(text);
-            }
-        });
-    }
-
-    private void assertTextLengthIntact(CharSequence text, TreeElement child) {
-        int length = 0;
-        while (child != null) {
-            length += child.getTextLength();
-            child = child.getTreeNext();
-        }
-        if (length != text.length()) {
-            LOG.error("Text mismatch in " + LogUtil.objectAndClass(getElementType()), new Attachment("code.txt", text.toString()));
-        }
-    }
-
-    private void setChildren(@NotNull TreeElement parsedNode, @Nullable AstPath thisPath) {
-        ProgressManager.getInstance().executeNonCancelableSection(() -> {
-            try {
-                AstPath.cacheNodePaths(this, parsedNode, thisPath);
+            if (parsedNode != null) {
                 TreeElement last = rawSetParents(parsedNode, this);
                 super.setFirstChildNode(parsedNode);
                 super.setLastChildNode(last);
-            } catch (Throwable e) {
-                LOG.error("Chameleon expansion may not be interrupted by exceptions", e);
             }
-        });
+            myParsed = true;
+            myText = new SoftReference<>(text);
+        }
     }
 
     @Override
@@ -244,7 +213,7 @@ public class LazyParseableElement extends CompositeElement {
     public TreeElement getLastChildNode() {
         ensureParsed();
         return super.getLastChildNode();
-    }*/
+    }
 
     public int copyTo(@Nullable char[] buffer, int start) {
         CharSequence text = myText();
@@ -0,0 +1,21 @@
+package com.intellij.psi.search;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+public class EverythingGlobalScope extends GlobalSearchScope {
+    public EverythingGlobalScope(Project project) {
+        super(project);
+    }
+
+    @Override
+    public boolean contains(@NotNull VirtualFile file) {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "Everything";
+    }
+}
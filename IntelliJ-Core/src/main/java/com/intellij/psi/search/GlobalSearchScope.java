@@ -27,12 +27,7 @@ public class GlobalSearchScope extends SearchScope {
     public static final GlobalSearchScope EMPTY_SCOPE = new GlobalSearchScope();
 
     public static GlobalSearchScope allScope(Project project) {
-        return new GlobalSearchScope() {
-            @Override
-            public boolean contains(@NotNull VirtualFile file) {
-                return true;
-            }
-        };
+        return new EverythingGlobalScope(project);
     }
 
     public static GlobalSearchScope fileScope(PsiFile file) {
@@ -1,9 +1,19 @@
 package com.intellij.psi.search;
 
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
 
+/**
+ * the workspace has no libraries apart from its files, this is every file of it
+ */
 public class ProjectAndLibrariesScope extends GlobalSearchScope {
     public ProjectAndLibrariesScope(Project project) {
+        super(project);
+    }
 
+    @Override
+    public boolean contains(@NotNull VirtualFile file) {
+        return true;
     }
 }
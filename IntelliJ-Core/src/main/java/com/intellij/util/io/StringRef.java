@@ -55,4 +55,14 @@ public abstract class StringRef {
   public static String toString(@Nullable StringRef ref) {
     return ref != null ? ref.getString() : null;
   }
+
+  @Contract("null -> null")
+  public static StringRef fromString(@Nullable final String source) {
+    return source == null ? null : new StringRef(source) {
+      @Override
+      public String getString() {
+        return source;
+      }
+    };
+  }
 }
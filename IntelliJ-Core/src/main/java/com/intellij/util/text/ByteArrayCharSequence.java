@@ -53,7 +53,7 @@ public class ByteArrayCharSequence implements CharSequenceWithStringHash {
 
   @Override
   public final char charAt(int index) {
-    return (char)myChars[index + myStart];
+    return (char)(myChars[index + myStart] & 0xFF);
   }
 
   @NotNull
@@ -26,7 +26,7 @@ public abstract class ImmutableCharSequence implements CharSequence {
     }
 
     private static boolean isImmutable(@NotNull final CharSequence cs) {
-        return cs instanceof ImmutableCharSequence ||
+        return cs instanceof ImmutableCharSequence || cs instanceof String ||
                 cs instanceof CharSequenceSubSequence && isImmutable(((CharSequenceSubSequence) cs).getBaseSequence());
     }
 